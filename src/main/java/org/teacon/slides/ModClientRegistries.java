@@ -11,6 +11,7 @@ import net.neoforged.fml.event.lifecycle.FMLClientSetupEvent;
 import net.neoforged.neoforge.client.event.EntityRenderersEvent;
 import net.neoforged.neoforge.client.event.RegisterMenuScreensEvent;
 import org.teacon.slides.item.SlideItem;
+import org.teacon.slides.relay.SlideRelayClient;
 import org.teacon.slides.renderer.ProjectorRenderer;
 import org.teacon.slides.renderer.SlideState;
 import org.teacon.slides.screen.ProjectorScreen;
@@ -47,6 +48,8 @@ public final class ModClientRegistries {
         SlideShow.setRequestUrlPrefetch(SlideState::prefetch);
         SlideShow.setApplyPrefetch(SlideState::applyPrefetch);
         SlideShow.setFetchSlideRecommendedName(Functions.compose(Slide::getRecommendedName, SlideState::getSlide));
+        SlideShow.setAcceptRelayResponse(SlideRelayClient.INSTANCE::accept);
+        SlideShow.setEnableRelay(SlideRelayClient.INSTANCE::enable);
         event.enqueueWork(() -> {
             var slideItem = ModRegistries.SLIDE_ITEM.get();
             ItemProperties.register(slideItem, SlideShow.id("url_status"), (stack, level, entity, seed) -> {
@@ -14,10 +14,12 @@ import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.neoforged.bus.api.SubscribeEvent;
 import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.fml.loading.FMLEnvironment;
 import net.neoforged.neoforge.capabilities.Capabilities;
 import net.neoforged.neoforge.capabilities.RegisterCapabilitiesEvent;
 import net.neoforged.neoforge.event.BuildCreativeModeTabContentsEvent;
 import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
+import net.neoforged.neoforge.network.registration.HandlerThread;
 import net.neoforged.neoforge.registries.DeferredHolder;
 import net.neoforged.neoforge.registries.RegisterEvent;
 import org.teacon.slides.block.ProjectorBlock;
@@ -27,6 +29,7 @@ import org.teacon.slides.inventory.SlideItemContainerMenu;
 import org.teacon.slides.item.ProjectorItem;
 import org.teacon.slides.item.SlideItem;
 import org.teacon.slides.network.*;
+import org.teacon.slides.relay.SlideRelayServer;
 import org.teacon.slides.url.ProjectorURLArgument;
 import org.teacon.slides.url.ProjectorURLPatternArgument;
 
@@ -94,6 +97,15 @@ public final class ModRegistries {
         pr.playToClient(SlideURLPrefetchPacket.TYPE, SlideURLPrefetchPacket.CODEC, SlideURLPrefetchPacket::handle);
         pr.playToServer(SlideURLRequestPacket.TYPE, SlideURLRequestPacket.CODEC, SlideURLRequestPacket::handle);
         pr.commonToClient(SlideSummaryPacket.TYPE, SlideSummaryPacket.CODEC, SlideSummaryPacket::handle);
+        // the relay is only negotiated with servers which enable it, and clients fall back to the origin otherwise,
+        // while integrated servers negotiate it as well, so that clients wait for the server to announce it
+        if (FMLEnvironment.dist.isClient() || SlideRelayServer.ENABLED) {
+            var relay = event.registrar(NETWORK_VERSION).optional().executesOn(HandlerThread.NETWORK);
+            relay.playToServer(SlideRelayRequestPacket.TYPE, SlideRelayRequestPacket.CODEC, SlideRelayRequestPacket::handle);
+            relay.playToServer(SlideRelayCancelPacket.TYPE, SlideRelayCancelPacket.CODEC, SlideRelayCancelPacket::handle);
+            relay.playToClient(SlideRelayResponsePacket.TYPE, SlideRelayResponsePacket.CODEC, SlideRelayResponsePacket::handle);
+            relay.playToClient(SlideRelayEnabledPacket.TYPE, SlideRelayEnabledPacket.CODEC, SlideRelayEnabledPacket::handle);
+        }
         SlideShow.LOGGER.info("Registered related network packages (version {})", NETWORK_VERSION);
     }
 
@@ -9,6 +9,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.teacon.slides.block.ProjectorBlockEntity;
+import org.teacon.slides.network.SlideRelayResponsePacket;
 import org.teacon.slides.url.ProjectorURL;
 
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -32,6 +33,8 @@ public final class SlideShow {
     private static volatile BiConsumer<Set<UUID>, Map<UUID, ProjectorURL>> applyPrefetch = Objects::hash;
     private static volatile Function<UUID, String> fetchSlideRecommendedName = uuid -> StringUtils.EMPTY;
     private static volatile Function<Either<UUID, ProjectorURL>, ProjectorURL.Status> checkBlock = url -> ProjectorURL.Status.UNKNOWN;
+    private static volatile Consumer<SlideRelayResponsePacket> acceptRelayResponse = Objects::hash;
+    private static volatile Runnable enableRelay = () -> {};
 
     public static void setRequestUrlPrefetch(Consumer<ProjectorBlockEntity> requestUrlPrefetch) {
         SlideShow.requestUrlPrefetch = requestUrlPrefetch;
@@ -69,6 +72,22 @@ public final class SlideShow {
         return checkBlock.apply(Either.right(url));
     }
 
+    public static void setAcceptRelayResponse(Consumer<SlideRelayResponsePacket> acceptRelayResponse) {
+        SlideShow.acceptRelayResponse = acceptRelayResponse;
+    }
+
+    public static void acceptRelayResponse(SlideRelayResponsePacket packet) {
+        acceptRelayResponse.accept(packet);
+    }
+
+    public static void setEnableRelay(Runnable enableRelay) {
+        SlideShow.enableRelay = enableRelay;
+    }
+
+    public static void enableRelay() {
+        enableRelay.run();
+    }
+
     public static ResourceLocation id(String path) {
         return ResourceLocation.fromNamespaceAndPath(SlideShow.ID, path);
     }
@@ -0,0 +1,98 @@
+package org.teacon.slides.admin;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import net.minecraft.ChatFormatting;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.client.Minecraft;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.network.chat.Component;
+import net.neoforged.api.distmarker.Dist;
+import net.neoforged.bus.api.SubscribeEvent;
+import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.client.event.RegisterClientCommandsEvent;
+import org.apache.commons.lang3.StringUtils;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.renderer.SlideState;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import static net.minecraft.commands.Commands.argument;
+import static net.minecraft.commands.Commands.literal;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@EventBusSubscriber(bus = EventBusSubscriber.Bus.GAME, value = Dist.CLIENT)
+public final class SlideClientCommand {
+    @SubscribeEvent
+    public static void onClientCommandsRegister(RegisterClientCommandsEvent event) {
+        var node = event.getDispatcher().register(command(SlideShow.ID.replace('_', '-') + "-client"));
+        event.getDispatcher().register(literal(StringUtils.substringBefore(SlideShow.ID, '_') + "-client").redirect(node));
+    }
+
+    private static LiteralArgumentBuilder<CommandSourceStack> command(String name) {
+        return literal(name)
+                .then(literal("metrics")
+                        .then(literal("overlay")
+                                .executes(context -> metricsOverlay(context.getSource())))
+                        .executes(context -> metrics(context.getSource())))
+                .then(literal("bundle")
+                        .then(literal("export")
+                                .then(argument("name", StringArgumentType.word())
+                                        .executes(context -> exportBundle(context.getSource(),
+                                                StringArgumentType.getString(context, "name")))))
+                        .then(literal("import")
+                                .then(argument("name", StringArgumentType.word())
+                                        .executes(context -> importBundle(context.getSource(),
+                                                StringArgumentType.getString(context, "name"))))));
+    }
+
+    private static int metrics(CommandSourceStack source) {
+        var cache = ImageCache.getInstance();
+        var lines = cache.getMetrics().dump(cache);
+        var msg = Component.translatable("command.slide_show.metrics.success");
+        source.sendSuccess(() -> msg.withStyle(ChatFormatting.GREEN), false);
+        for (var line : lines) {
+            SlideShow.LOGGER.info("SlideShow metrics: {}", line);
+            source.sendSuccess(() -> Component.literal(line).withStyle(ChatFormatting.GRAY), false);
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int exportBundle(CommandSourceStack source, String name) {
+        ImageCache.getInstance().exportBundle(name).whenComplete((count, throwable) -> Minecraft.getInstance().execute(() -> {
+            if (throwable != null) {
+                var msg = Component.translatable("command.slide_show.bundle.failed", name, throwable.getMessage());
+                source.sendFailure(msg);
+            } else {
+                var msg = Component.translatable("command.slide_show.export_bundle.success", count, name);
+                source.sendSuccess(() -> msg.withStyle(ChatFormatting.GREEN), false);
+            }
+        }));
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int importBundle(CommandSourceStack source, String name) {
+        ImageCache.getInstance().importBundle(name).whenComplete((count, throwable) -> Minecraft.getInstance().execute(() -> {
+            if (throwable != null) {
+                var msg = Component.translatable("command.slide_show.bundle.failed", name, throwable.getMessage());
+                source.sendFailure(msg);
+            } else {
+                var msg = Component.translatable("command.slide_show.import_bundle.success", count, name);
+                source.sendSuccess(() -> msg.withStyle(ChatFormatting.GREEN), false);
+            }
+        }));
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int metricsOverlay(CommandSourceStack source) {
+        var enabled = SlideState.toggleMetricsOverlay();
+        var key = enabled ? "command.slide_show.metrics_overlay.enabled" : "command.slide_show.metrics_overlay.disabled";
+        source.sendSuccess(() -> Component.translatable(key).withStyle(ChatFormatting.GREEN), false);
+        return Command.SINGLE_SUCCESS;
+    }
+}
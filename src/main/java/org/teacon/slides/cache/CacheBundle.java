@@ -0,0 +1,138 @@
+package org.teacon.slides.cache;
+
+import com.google.common.io.ByteStreams;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A single file which carries cache entries together with their bodies, so that a cache could be
+ * pre-seeded (e.g. before an event) by reading the file once from the beginning to the end.
+ * <p>
+ * The file starts with a header (magic and version), followed by entries, and ends with a negative
+ * length. Every entry is its key, its record (which is encoded the same as in {@link CacheIndex}),
+ * and its body. Bodies are content addressed, so that a body shared by several entries is only
+ * written with the first entry, and the following entries only refer to it.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class CacheBundle {
+
+    private static final int MAGIC = 0x5353424E; // SSBN
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CacheBundle() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads all the entries in order.
+     *
+     * @return the count of entries read
+     */
+    public static int read(Path bundlePath, Visitor visitor) throws IOException {
+        var count = 0;
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(bundlePath), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unrecognized cache bundle " + bundlePath);
+            }
+            for (var keyLength = input.readInt(); keyLength >= 0; keyLength = input.readInt()) {
+                var key = new String(input.readNBytes(keyLength), StandardCharsets.UTF_8);
+                var record = ByteBuffer.wrap(input.readNBytes(input.readInt()));
+                var hasBody = input.readBoolean();
+                var bodyLength = hasBody ? input.readLong() : 0L;
+                var body = ByteStreams.limit(input, bodyLength);
+                visitor.visit(key, record, hasBody ? body : null);
+                // skip the remaining bytes if the visitor has not consumed the whole body
+                ByteStreams.exhaust(body);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @param key    the key of the entry
+         * @param record the encoded entry, see {@link CacheIndex#encode}
+         * @param body   the body of the entry, or null if it has been carried by a previous entry
+         */
+        void visit(String key, ByteBuffer record, @Nullable InputStream body) throws IOException;
+    }
+
+    /**
+     * Writes entries to a temporary file, which is moved to the target path when the writer is finished.
+     * Closing the writer without finishing it discards all the entries written.
+     */
+    public static final class Writer implements Closeable {
+        private final Path bundlePath;
+        private final Path tmp;
+        private final DataOutputStream output;
+        private final Set<Path> writtenBodies = new HashSet<>();
+        private int count;
+
+        public Writer(Path bundlePath, Path tempPath) throws IOException {
+            this.bundlePath = bundlePath;
+            this.tmp = Files.createTempFile(tempPath, "bundle-", ".tmp");
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.tmp), BUFFER_SIZE));
+            this.output.writeInt(MAGIC);
+            this.output.writeInt(VERSION);
+        }
+
+        public void add(String key, ByteBuffer record, Path bodyPath) throws IOException {
+            var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            this.output.writeInt(keyBytes.length);
+            this.output.write(keyBytes);
+            var recordBytes = new byte[record.remaining()];
+            record.duplicate().get(recordBytes);
+            this.output.writeInt(recordBytes.length);
+            this.output.write(recordBytes);
+            var hasBody = this.writtenBodies.add(bodyPath.getFileName());
+            this.output.writeBoolean(hasBody);
+            if (hasBody) {
+                this.output.writeLong(Files.size(bodyPath));
+                Files.copy(bodyPath, this.output);
+            }
+            ++this.count;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        public void finish() throws IOException {
+            try (this.output) {
+                this.output.writeInt(-1);
+            }
+            Files.move(this.tmp, this.bundlePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.output.close();
+            } finally {
+                Files.deleteIfExists(this.tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package org.teacon.slides.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable and memory-mapped index of cache entries. The index file is a table of (key hash,
+ * record offset) pairs sorted by the key hash, followed by the records. Opening an index costs
+ * nothing but mapping the file, and a record is only decoded when its key is looked up.
+ * <p>
+ * Every compaction writes a new generation of the index rather than replacing the file in place,
+ * since a mapped file could not be replaced or deleted on some platforms.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class CacheIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Downloader");
+
+    private static final int MAGIC = 0x53534958; // SSIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ROW_SIZE = 16;
+
+    private static final Pattern FILE_NAME = Pattern.compile("storage-index-(\\d+)\\.bin");
+
+    private static final CacheIndex EMPTY = new CacheIndex(0L, ByteBuffer.allocate(HEADER_SIZE), 0);
+
+    private final long generation;
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private CacheIndex(long generation, ByteBuffer buffer, int count) {
+        this.generation = generation;
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    public static CacheIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Opens the latest generation of the index, and deletes the older generations.
+     *
+     * @throws IOException if there are generations of the index but none of them could be opened
+     */
+    public static CacheIndex open(Path parentPath) throws IOException {
+        var generations = new ArrayList<Long>();
+        try (var stream = Files.newDirectoryStream(parentPath, "storage-index-*.bin")) {
+            for (var path : stream) {
+                var matcher = FILE_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generations.sort(Comparator.reverseOrder());
+        var result = EMPTY;
+        for (var generation : generations) {
+            var path = resolve(parentPath, generation);
+            if (result == EMPTY) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    var count = checkHeader(buffer);
+                    if (count >= 0) {
+                        result = new CacheIndex(generation, buffer, count);
+                        continue;
+                    }
+                    LOGGER.warn(MARKER, "Skipped malformed cache storage index {}. ", path);
+                } catch (IOException e) {
+                    LOGGER.warn(MARKER, "Failed to open cache storage index {}. ", path, e);
+                }
+            }
+            deleteQuietly(path);
+        }
+        if (result == EMPTY && !generations.isEmpty()) {
+            throw new IOException("None of the " + generations.size() + " cache storage index file(s) is valid");
+        }
+        return result;
+    }
+
+    /**
+     * Writes the next generation of the index, and opens it.
+     */
+    public CacheIndex write(Path parentPath, Path tempPath, Map<String, ByteBuffer> records) throws IOException {
+        var sorted = new ArrayList<>(records.entrySet());
+        sorted.sort(Comparator.comparingLong(e -> hash(e.getKey())));
+        var tableSize = HEADER_SIZE + (long) ROW_SIZE * sorted.size();
+        var tmp = Files.createTempFile(tempPath, "storage-index-", ".tmp");
+        try {
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                var table = ByteBuffer.allocate(Math.toIntExact(tableSize));
+                table.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(0);
+                var offset = tableSize;
+                for (var record : sorted) {
+                    table.putLong(hash(record.getKey())).putLong(offset);
+                    offset += Integer.BYTES + record.getValue().remaining();
+                }
+                writeFully(channel, table.flip());
+                var length = ByteBuffer.allocate(Integer.BYTES);
+                for (var record : sorted) {
+                    writeFully(channel, length.clear().putInt(record.getValue().remaining()).flip());
+                    writeFully(channel, record.getValue().duplicate());
+                }
+            }
+            var generation = this.generation + 1;
+            var path = resolve(parentPath, generation);
+            Files.move(tmp, path);
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new CacheIndex(generation, buffer, sorted.size());
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return whether a newer generation has been written (e.g. by another process sharing the directory)
+     */
+    public boolean isSuperseded(Path parentPath) {
+        if (this == EMPTY) {
+            try (var stream = Files.newDirectoryStream(parentPath, "storage-index-*.bin")) {
+                return stream.iterator().hasNext();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        // the file of this generation is deleted by whoever opens a newer generation
+        return Files.exists(resolve(parentPath, this.generation + 1)) || !Files.exists(resolve(parentPath, this.generation));
+    }
+
+    public void deleteFile(Path parentPath) {
+        if (this != EMPTY) {
+            deleteQuietly(resolve(parentPath, this.generation));
+        }
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public boolean contains(String key) {
+        return this.find(key) >= 0;
+    }
+
+    /**
+     * @return the entry, or null if the key is missing or its record is malformed
+     */
+    @Nullable
+    public CacheStorage.StoredEntry get(String key) {
+        var row = this.find(key);
+        if (row >= 0) {
+            try {
+                return decode(Objects.requireNonNull(this.record(row)));
+            } catch (RuntimeException e) {
+                LOGGER.warn(MARKER, "Skipped malformed cache storage index record of {}. ", key, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Malformed records are skipped, so that they are dropped by the next compaction.
+     */
+    public void forEachRaw(BiConsumer<String, ByteBuffer> consumer) {
+        for (var row = 0; row < this.count; ++row) {
+            var record = this.record(row);
+            if (record != null) {
+                consumer.accept(getString(record.duplicate()), record);
+            }
+        }
+    }
+
+    /**
+     * Malformed records are skipped, so that they are dropped by the next compaction.
+     */
+    public void forEach(SummaryConsumer consumer) {
+        for (var row = 0; row < this.count; ++row) {
+            var record = this.record(row);
+            if (record != null) {
+                var key = getString(record);
+                try {
+                    var path = Paths.get(getString(record));
+                    var size = record.getLong();
+                    var lastAccess = record.getLong();
+                    consumer.accept(key, path, size, lastAccess);
+                } catch (RuntimeException e) {
+                    LOGGER.warn(MARKER, "Skipped malformed cache storage index record of {}. ", key, e);
+                }
+            }
+        }
+    }
+
+    public static ByteBuffer encode(String key, CacheStorage.StoredEntry stored) {
+        var output = ByteStreams.newDataOutput();
+        var entry = stored.entry();
+        putString(output, key);
+        putString(output, stored.path().toString());
+        output.writeLong(stored.size());
+        output.writeLong(stored.lastAccess().get());
+        output.writeLong(entry.getRequestDate().getTime());
+        output.writeLong(entry.getResponseDate().getTime());
+        var statusLine = entry.getStatusLine();
+        var protocolVersion = statusLine.getProtocolVersion();
+        putString(output, protocolVersion.getProtocol());
+        output.writeInt(protocolVersion.getMajor());
+        output.writeInt(protocolVersion.getMinor());
+        output.writeInt(statusLine.getStatusCode());
+        putString(output, statusLine.getReasonPhrase() == null ? "" : statusLine.getReasonPhrase());
+        var headers = entry.getAllHeaders();
+        output.writeInt(headers.length);
+        for (var header : headers) {
+            putString(output, header.getName());
+            putString(output, header.getValue() == null ? "" : header.getValue());
+        }
+        var variantMap = entry.getVariantMap();
+        output.writeInt(variantMap.size());
+        for (var variantEntry : variantMap.entrySet()) {
+            putString(output, variantEntry.getKey());
+            putString(output, variantEntry.getValue());
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    public static String decodeKey(ByteBuffer record) {
+        return getString(record);
+    }
+
+    public static CacheStorage.StoredEntry decode(ByteBuffer record) {
+        getString(record); // key
+        var path = Paths.get(getString(record));
+        var size = record.getLong();
+        var lastAccess = record.getLong();
+        var requestDate = new Date(record.getLong());
+        var responseDate = new Date(record.getLong());
+        var protocolVersion = new ProtocolVersion(getString(record), record.getInt(), record.getInt());
+        var statusLine = new BasicStatusLine(protocolVersion, record.getInt(), getString(record));
+        var headers = new Header[record.getInt()];
+        for (var i = 0; i < headers.length; ++i) {
+            headers[i] = new BasicHeader(getString(record), getString(record));
+        }
+        var variantCount = record.getInt();
+        var variantMap = ImmutableMap.<String, String>builderWithExpectedSize(variantCount);
+        for (var i = 0; i < variantCount; ++i) {
+            variantMap.put(getString(record), getString(record));
+        }
+        var cacheEntry = new HttpCacheEntry(requestDate, responseDate, statusLine,
+                headers, new ContentFileResource(path.toFile()), variantMap.build());
+        return new CacheStorage.StoredEntry(path, cacheEntry, size, lastAccess);
+    }
+
+    private int find(String key) {
+        var hash = hash(key);
+        var low = 0;
+        var high = this.count - 1;
+        while (low <= high) {
+            var mid = (low + high) >>> 1;
+            var midHash = this.buffer.getLong(HEADER_SIZE + ROW_SIZE * mid);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // rows sharing the same hash are adjacent, and collisions are resolved by comparing keys
+        for (var row = low; row < this.count; ++row) {
+            if (this.buffer.getLong(HEADER_SIZE + ROW_SIZE * row) != hash) {
+                break;
+            }
+            var record = this.record(row);
+            if (record != null && key.equals(getString(record))) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records are validated here rather than when the index is opened, so that opening the index never
+     * touches the pages of the records. Only the bounds of the record and of its key are validated, and
+     * the rest of the record is validated while it is decoded.
+     *
+     * @return the record, or null if it is malformed
+     */
+    @Nullable
+    private ByteBuffer record(int row) {
+        var capacity = this.buffer.capacity();
+        var offset = this.buffer.getLong(HEADER_SIZE + ROW_SIZE * row + Long.BYTES);
+        if (offset < HEADER_SIZE + (long) ROW_SIZE * this.count || offset > capacity - Integer.BYTES) {
+            return null;
+        }
+        var length = this.buffer.getInt((int) offset);
+        if (length < Integer.BYTES || length > capacity - offset - Integer.BYTES) {
+            return null;
+        }
+        var record = this.buffer.slice((int) offset + Integer.BYTES, length);
+        var keyLength = record.getInt(0);
+        if (keyLength < 0 || keyLength > length - Integer.BYTES) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Only the header and the size of the table are checked, so that opening the index costs O(1).
+     *
+     * @return the count of rows in the table, or -1 if the header is malformed
+     */
+    private static int checkHeader(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return -1;
+        }
+        var count = buffer.getInt(8);
+        if (count < 0 || HEADER_SIZE + (long) ROW_SIZE * count > buffer.capacity()) {
+            return -1;
+        }
+        return count;
+    }
+
+    private static long hash(String key) {
+        return Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static Path resolve(Path parentPath, long generation) {
+        return parentPath.resolve("storage-index-" + generation + ".bin");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void putString(ByteArrayDataOutput output, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        var bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // the file may be still mapped, and it will be deleted next time
+            LOGGER.debug(MARKER, "Failed to delete cache storage index {}. ", path, e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface SummaryConsumer {
+        void accept(String key, Path path, long size, long lastAccess);
+    }
+}
@@ -0,0 +1,197 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the slide show image pipeline. Everything here is lock-free,
+ * so that metrics could be recorded on the hot path (including the render thread).
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class CacheMetrics {
+
+    /**
+     * Where a request is served from.
+     */
+    public enum Source {
+        /**
+         * Shared with another request which is in flight.
+         */
+        MEMORY,
+        /**
+         * Served by the cache storage without contacting the remote server.
+         */
+        DISK,
+        /**
+         * Revalidated with the remote server, which responded 304 (not modified).
+         */
+        VALIDATED,
+        /**
+         * Downloaded from the remote server.
+         */
+        NETWORK,
+        /**
+         * Failed to be served.
+         */
+        FAILURE
+    }
+
+    private final EnumMap<Source, Histogram> requests = new EnumMap<>(Source.class);
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder collections = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private final Histogram decode = new Histogram();
+    private final Histogram upload = new Histogram();
+
+    CacheMetrics() {
+        for (var source : Source.values()) {
+            this.requests.put(source, new Histogram());
+        }
+    }
+
+    public void recordRequest(Source source, long nanos) {
+        this.requests.get(source).record(nanos);
+    }
+
+    public void recordRevalidation() {
+        this.revalidations.increment();
+    }
+
+    public void recordCollection(long bytes) {
+        this.collections.increment();
+        this.reclaimedBytes.add(bytes);
+    }
+
+    public void recordDecode(long nanos) {
+        this.decode.record(nanos);
+    }
+
+    public void recordUpload(long nanos) {
+        this.upload.record(nanos);
+    }
+
+    public Histogram getRequests(Source source) {
+        return this.requests.get(source);
+    }
+
+    public long getRequestCount() {
+        var result = 0L;
+        for (var histogram : this.requests.values()) {
+            result += histogram.getCount();
+        }
+        return result;
+    }
+
+    public long getRevalidationCount() {
+        return this.revalidations.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return this.reclaimedBytes.sum();
+    }
+
+    public Histogram getDecode() {
+        return this.decode;
+    }
+
+    public Histogram getUpload() {
+        return this.upload;
+    }
+
+    /**
+     * @return human-readable lines of all the metrics
+     */
+    public List<String> dump(ImageCache cache) {
+        var result = new ArrayList<String>();
+        for (var source : Source.values()) {
+            result.add("Request " + source.name().toLowerCase(Locale.ROOT) + ": " + this.requests.get(source));
+        }
+        result.add("Decode: " + this.decode);
+        result.add("Upload: " + this.upload);
+        var pixelCache = cache.getPixelCache();
+        result.add("Revalidations: " + this.revalidations.sum() + ", " +
+                "Pixel cache: " + pixelCache.getHitCount() + " hit(s), " + pixelCache.getMissCount() + " miss(es)");
+        result.add("Received: " + (cache.getReceivedBytes() >> 10) + "KiB, " +
+                "Throttled: " + cache.getThrottledMillis() + "ms, " +
+                "Leaked: " + ResourceLease.getLeakCount() + " lease(s)");
+        result.add("Garbage collections: " + this.collections.sum() + ", " +
+                "Reclaimed: " + (this.reclaimedBytes.sum() >> 10) + "KiB");
+        return result;
+    }
+
+    /**
+     * A histogram of durations, whose buckets are powers of two in microseconds. Recording is
+     * wait-free, and percentiles are estimated as the upper bound of the bucket which they fall in.
+     */
+    public static final class Histogram {
+        private static final int BUCKET_COUNT = Long.SIZE;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+        public void record(long nanos) {
+            var micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+            // bucket 0 is for durations less than 1 microsecond, and bucket i is for [2^(i-1), 2^i) microseconds
+            this.buckets.incrementAndGet(Math.min(BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(micros)));
+            this.count.increment();
+            this.sumNanos.add(nanos);
+            this.maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public double getMeanMillis() {
+            var count = this.count.sum();
+            return count == 0 ? 0.0 : this.sumNanos.sum() / 1.0E6 / count;
+        }
+
+        public double getMaxMillis() {
+            return this.maxNanos.get() / 1.0E6;
+        }
+
+        /**
+         * @param quantile the quantile between 0 and 1
+         * @return the estimated duration in milliseconds
+         */
+        public double getPercentileMillis(double quantile) {
+            var total = 0L;
+            var counts = new long[BUCKET_COUNT];
+            for (var i = 0; i < BUCKET_COUNT; ++i) {
+                counts[i] = this.buckets.get(i);
+                total += counts[i];
+            }
+            var rank = (long) Math.ceil(quantile * total);
+            var accumulated = 0L;
+            for (var i = 0; i < BUCKET_COUNT; ++i) {
+                accumulated += counts[i];
+                if (accumulated >= rank && accumulated > 0) {
+                    return Math.scalb(1.0, i) / 1.0E3;
+                }
+            }
+            return 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "n=%d, mean=%.1fms, p50<%.1fms, p99<%.1fms, max=%.1fms",
+                    this.getCount(), this.getMeanMillis(), this.getPercentileMillis(0.5),
+                    this.getPercentileMillis(0.99), this.getMaxMillis());
+        }
+    }
+}
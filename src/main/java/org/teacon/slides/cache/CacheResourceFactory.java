@@ -0,0 +1,109 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.HashingOutputStream;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers response bodies in reference counted temporary files rather than on heap. The caching layer
+ * never tells when it is done with a body, so that the bodies created during a request are collected
+ * by the scope of the request (which runs on a single thread), and are released when the scope closes.
+ * <p>
+ * Bodies are hashed while they are being written, so that the storage could move the same file into
+ * place under its content addressed name without reading it again.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class CacheResourceFactory implements ResourceFactory {
+
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final Path tempPath;
+    private final ThreadLocal<List<TempFileResource>> scope = new ThreadLocal<>();
+
+    public CacheResourceFactory(Path tempPath) {
+        this.tempPath = tempPath;
+    }
+
+    /**
+     * Opens a scope on the current thread, which should be closed on the same thread.
+     */
+    public Scope openScope() {
+        var resources = new ArrayList<TempFileResource>();
+        this.scope.set(resources);
+        return () -> {
+            this.scope.remove();
+            resources.forEach(TempFileResource::dispose);
+        };
+    }
+
+    @Override
+    public Resource generate(String requestId, InputStream instream, @Nullable InputLimit limit) throws IOException {
+        var tmp = Files.createTempFile(this.tempPath, "response-", ".tmp");
+        @SuppressWarnings("deprecation") var hashFunction = Hashing.sha1();
+        try (var output = new HashingOutputStream(hashFunction, Files.newOutputStream(tmp))) {
+            var total = 0L;
+            var buffer = new byte[BUFFER_SIZE];
+            for (var n = instream.read(buffer); n >= 0; n = instream.read(buffer)) {
+                output.write(buffer, 0, n);
+                total += n;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+            output.flush();
+            return this.register(new TempFileResource(tmp.toFile(), output.hash()));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    @Override
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        // content files are immutable, so that an updated entry (e.g. after a 304) could share it
+        if (resource instanceof ContentFileResource) {
+            return resource;
+        }
+        var tmp = Files.createTempFile(this.tempPath, "response-", ".tmp");
+        @SuppressWarnings("deprecation") var hashFunction = Hashing.sha1();
+        try (var input = new HashingInputStream(hashFunction, resource.getInputStream())) {
+            Files.copy(input, tmp, StandardCopyOption.REPLACE_EXISTING);
+            return this.register(new TempFileResource(tmp.toFile(), input.hash()));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private TempFileResource register(TempFileResource resource) {
+        var resources = this.scope.get();
+        if (resources != null) {
+            resources.add(resource);
+        }
+        return resource;
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,131 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.Hashing;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small file written next to every body, which carries the records (encoded the same as in {@link
+ * CacheIndex}) of the entries referring to the body. The index could be rebuilt from sidecars alone
+ * if it has been corrupted (e.g. by a crash during compaction), without downloading any body again.
+ * <p>
+ * Sidecars are only written when entries are published, so that a sidecar may still carry entries
+ * removed since then, which are revalidated with remote servers after being recovered anyway.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class CacheSidecar {
+
+    static final String EXTENSION = ".meta";
+
+    private static final int MAGIC = 0x53534D44; // SSMD
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private CacheSidecar() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static Path resolve(Path bodyPath) {
+        return bodyPath.resolveSibling(bodyPath.getFileName() + EXTENSION);
+    }
+
+    public static boolean isSidecar(Path path) {
+        return path.getFileName().toString().endsWith(EXTENSION);
+    }
+
+    public static Path getBodyPath(Path sidecarPath) {
+        var name = sidecarPath.getFileName().toString();
+        return sidecarPath.resolveSibling(name.substring(0, name.length() - EXTENSION.length()));
+    }
+
+    /**
+     * Adds or replaces the record of the given key. The caller should make sure that the sidecar of the
+     * same body is never written concurrently.
+     */
+    public static void put(Path bodyPath, Path tempPath, String key, ByteBuffer record) throws IOException {
+        var path = resolve(bodyPath);
+        var records = new LinkedHashMap<String, ByteBuffer>();
+        try {
+            records.putAll(read(path));
+        } catch (NoSuchFileException ignored) {
+            // the first entry referring to the body
+        } catch (IOException e) {
+            // a malformed sidecar is simply rewritten
+        }
+        records.put(key, record);
+        write(path, tempPath, records);
+    }
+
+    /**
+     * @return records keyed by their keys
+     */
+    public static Map<String, ByteBuffer> read(Path sidecarPath) throws IOException {
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(sidecarPath));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Unrecognized cache sidecar " + sidecarPath);
+        }
+        var count = buffer.getInt();
+        var records = new LinkedHashMap<String, ByteBuffer>(Math.max(count, 0));
+        for (var i = 0; i < count; ++i) {
+            if (buffer.remaining() < Integer.BYTES) {
+                throw new IOException("Truncated cache sidecar " + sidecarPath);
+            }
+            var length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Truncated cache sidecar " + sidecarPath);
+            }
+            var record = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            records.put(CacheIndex.decodeKey(record.duplicate()), record);
+        }
+        return records;
+    }
+
+    /**
+     * @return whether the body is named after the SHA-1 of its content
+     */
+    public static boolean verify(Path bodyPath) throws IOException {
+        var expected = FilenameAllocation.parseSha1HashName(bodyPath.getFileName().toString());
+        if (expected.isEmpty()) {
+            return false;
+        }
+        @SuppressWarnings("deprecation") var hasher = Hashing.sha1().newHasher();
+        try (var input = Files.newInputStream(bodyPath)) {
+            var buffer = new byte[1 << 16];
+            for (var n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+                hasher.putBytes(buffer, 0, n);
+            }
+        }
+        return expected.get().equals(hasher.hash());
+    }
+
+    private static void write(Path path, Path tempPath, Map<String, ByteBuffer> records) throws IOException {
+        var size = HEADER_SIZE;
+        for (var record : records.values()) {
+            size += Integer.BYTES + record.remaining();
+        }
+        var buffer = ByteBuffer.allocate(size).putInt(MAGIC).putInt(VERSION).putInt(records.size());
+        for (var record : records.values()) {
+            buffer.putInt(record.remaining()).put(record.duplicate());
+        }
+        var tmp = Files.createTempFile(tempPath, "sidecar-", ".tmp");
+        try {
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.teacon.slides.cache;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Sets;
 import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
@@ -10,17 +13,15 @@ import com.google.gson.JsonObject;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
 import net.minecraft.Util;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.ParseException;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
 import org.apache.http.client.utils.DateUtils;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.cache.FileResource;
 import org.apache.http.message.BasicLineParser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -30,19 +31,36 @@ import org.apache.logging.log4j.MarkerManager;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
-import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
@@ -52,20 +70,54 @@ final class CacheStorage implements HttpCacheStorage {
     private static final Logger LOGGER = LogManager.getLogger("SlideShow");
     private static final Marker MARKER = MarkerManager.getMarker("Downloader");
 
-    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static final int COMPACT_THRESHOLD = 1024;
+    private static final int EVICT_BATCH_SIZE = 64;
+
+    // file locks are held by the whole process, so that instances sharing a directory exclude each other here
+    private static final Map<Path, Object> KEY_LOCKS = new ConcurrentHashMap<>();
 
     private final Object keyLock;
     private final Path parentPath;
+    private final Path tempPath;
+    // the legacy json index, which is only read once for migration
     private final Path keyFilePath;
+    private final Path journalFilePath;
+    // the directory may be shared by several processes, which exclude each other by locking this file
+    private final Path lockFilePath;
+    private @Nullable FileChannel lockChannel;
+    // bytes of the journal which have been replayed (or appended) by this process
+    private volatile long journalOffset;
+    // the size and the modification time of the journal when it was checked last time
+    private volatile long checkedJournalSize = -1L;
+    private volatile long checkedJournalMillis = -1L;
 
     private final AtomicInteger markedDirty = new AtomicInteger();
-    private final Map<String, Pair<Path, HttpCacheEntry>> entries = new LinkedHashMap<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // files only referenced by the sidecars should never be collected before they are recovered
+    private final AtomicBoolean recovering = new AtomicBoolean();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicBoolean catchingUp = new AtomicBoolean();
+    private final long maxBytes;
+    private final int maxEntries;
+    private final Executor executor;
+    private final PixelCache pixelCache;
+    // writes of the same key are serialized, while lookups never wait for any lock
+    private volatile State state = new State(CacheIndex.empty());
+    // bodies of the recovered entries, which have not been verified against their names yet
+    private final Set<Path> unverifiedPaths = ConcurrentHashMap.newKeySet();
+    private final Striped<Lock> entryLocks = Striped.lock(64);
+    // publishing a file (shared lock) must never interleave with deleting unreferenced files (exclusive lock)
+    private final ReadWriteLock publishLock = new ReentrantReadWriteLock();
 
-    private final ReferenceQueue<HttpCacheEntry> referenceQueue;
-    private final Set<ResourceReference> resourceReferenceHolder;
-
-    private static Pair<Path, HttpCacheEntry> normalize(Path parentPath, HttpCacheEntry entry) throws IOException {
-        var bytes = IOUtils.toByteArray(entry.getResource().getInputStream());
+    /**
+     * Describes the entry whose body (which is hashed already) is in the given file. The file should be
+     * moved to the returned path (which is named after the SHA-1 of the body) before the returned entry
+     * is used.
+     */
+    private static StoredEntry normalize(Path parentPath, HttpCacheEntry entry,
+                                         HashCode contentHash, Path file) throws IOException {
         var type = (ContentType) null;
         try {
             var contentTypeHeader = entry.getFirstHeader(HttpHeaders.CONTENT_TYPE);
@@ -75,48 +127,96 @@ final class CacheStorage implements HttpCacheStorage {
         } catch (ParseException | UnsupportedCharsetException ignored) {
             // do nothing`
         }
-        var tmp = Files.write(Files.createTempFile("slideshow-", ".tmp"), bytes);
-        var path = Files.move(tmp, parentPath.resolve(
-                FilenameAllocation.allocateSha1HashName(bytes, type)), StandardCopyOption.REPLACE_EXISTING);
-        return Pair.of(path, new HttpCacheEntry(entry.getRequestDate(), entry.getResponseDate(),
-                entry.getStatusLine(), entry.getAllHeaders(), new FileResource(path.toFile()), entry.getVariantMap()));
-    }
-
-    private static void saveJson(Map<String, Pair<Path, HttpCacheEntry>> entries, JsonObject root) {
-        for (var entry : entries.entrySet()) {
-            var filePath = entry.getValue().getKey();
-            var cacheEntry = entry.getValue().getValue();
-            root.add(entry.getKey(), Util.make(new JsonObject(), child -> {
-                child.addProperty("request_date", DateUtils.formatDate(cacheEntry.getRequestDate()));
-                child.addProperty("response_date", DateUtils.formatDate(cacheEntry.getResponseDate()));
-                child.addProperty("status_line", cacheEntry.getStatusLine().toString());
-                child.add("headers", Util.make(new JsonArray(), array -> {
-                    for (var header : cacheEntry.getAllHeaders()) {
-                        array.add(header.toString());
-                    }
-                }));
-                child.addProperty("resource", filePath.toString());
-                child.add("variant_map", Util.make(new JsonObject(), object -> {
-                    for (var variantEntry : cacheEntry.getVariantMap().entrySet()) {
-                        object.addProperty(variantEntry.getKey(), variantEntry.getValue());
-                    }
-                }));
-            }));
+        // only the magic bytes are read again, which are enough for sniffing the format
+        var magic = ByteBuffer.allocate(FilenameAllocation.MAGIC_LENGTH);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // read until the buffer is full or the file ends
+            }
         }
+        var format = ImageFormat.detect(magic.flip(), type == null ? null : type.getMimeType());
+        var name = FilenameAllocation.allocateSha1HashName(contentHash, format);
+        var path = parentPath.resolve(name);
+        var resource = new ContentFileResource(path.toFile());
+        return new StoredEntry(path, new HttpCacheEntry(entry.getRequestDate(), entry.getResponseDate(),
+                entry.getStatusLine(), entry.getAllHeaders(), resource, entry.getVariantMap()),
+                Files.size(file), System.currentTimeMillis());
     }
 
-    private static void loadJson(Map<String, Pair<Path, HttpCacheEntry>> entries, JsonObject root) {
+    /**
+     * Streams the body of a resource which is not created by our factory into the given temporary file.
+     *
+     * @return the SHA-1 of the body
+     */
+    private static HashCode copy(Resource resource, Path tmp) throws IOException {
+        @SuppressWarnings("deprecation") var hashFunction = Hashing.sha1();
+        try (var input = new HashingInputStream(hashFunction, resource.getInputStream())) {
+            Files.copy(input, tmp, StandardCopyOption.REPLACE_EXISTING);
+            return input.hash();
+        }
+    }
+
+    private static void loadJson(Map<String, StoredEntry> entries, JsonObject root) {
         for (var entry : root.entrySet()) {
-            var child = entry.getValue().getAsJsonObject();
-            var requestDate = DateUtils.parseDate(child.get("request_date").getAsString());
-            var responseDate = DateUtils.parseDate(child.get("response_date").getAsString());
-            var statusLine = BasicLineParser.parseStatusLine(child.get("status_line").getAsString(), null);
-            var filePath = Paths.get(child.get("resource").getAsString());
-            var headers = loadHeaders(child);
-            var variantMap = loadVariantMap(child);
-            var cacheEntry = new HttpCacheEntry(requestDate, responseDate,
-                    statusLine, headers, new FileResource(filePath.toFile()), variantMap);
-            entries.put(entry.getKey(), Pair.of(filePath, cacheEntry));
+            entries.put(entry.getKey(), fromJson(entry.getValue().getAsJsonObject()));
+        }
+    }
+
+    private static JsonObject toJson(StoredEntry stored) {
+        var filePath = stored.path();
+        var cacheEntry = stored.entry();
+        return Util.make(new JsonObject(), child -> {
+            child.addProperty("request_date", DateUtils.formatDate(cacheEntry.getRequestDate()));
+            child.addProperty("response_date", DateUtils.formatDate(cacheEntry.getResponseDate()));
+            child.addProperty("status_line", cacheEntry.getStatusLine().toString());
+            child.add("headers", Util.make(new JsonArray(), array -> {
+                for (var header : cacheEntry.getAllHeaders()) {
+                    array.add(header.toString());
+                }
+            }));
+            child.addProperty("resource", filePath.toString());
+            child.addProperty("size", stored.size());
+            child.addProperty("last_access", stored.lastAccess().get());
+            child.add("variant_map", Util.make(new JsonObject(), object -> {
+                for (var variantEntry : cacheEntry.getVariantMap().entrySet()) {
+                    object.addProperty(variantEntry.getKey(), variantEntry.getValue());
+                }
+            }));
+        });
+    }
+
+    private static StoredEntry fromJson(JsonObject child) {
+        var requestDate = DateUtils.parseDate(child.get("request_date").getAsString());
+        var responseDate = DateUtils.parseDate(child.get("response_date").getAsString());
+        var statusLine = BasicLineParser.parseStatusLine(child.get("status_line").getAsString(), null);
+        var filePath = Paths.get(child.get("resource").getAsString());
+        var headers = loadHeaders(child);
+        var variantMap = loadVariantMap(child);
+        var cacheEntry = new HttpCacheEntry(requestDate, responseDate,
+                statusLine, headers, new ContentFileResource(filePath.toFile()), variantMap);
+        var size = child.has("size") ? child.get("size").getAsLong() : filePath.toFile().length();
+        var lastAccess = child.has("last_access") ? child.get("last_access").getAsLong() : responseDate.getTime();
+        return new StoredEntry(filePath, cacheEntry, size, lastAccess);
+    }
+
+    private static void replayJournal(State state, List<String> lines) {
+        var lineNumber = 0;
+        for (var line : lines) {
+            ++lineNumber;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                var record = GSON.fromJson(line, JsonObject.class);
+                if (record.has("put")) {
+                    state.put(record.get("put").getAsString(), fromJson(record.getAsJsonObject("entry")));
+                } else if (record.has("remove")) {
+                    state.remove(record.get("remove").getAsString());
+                }
+            } catch (Exception e) {
+                // torn records have been truncated already, and other malformed records are simply skipped
+                LOGGER.warn(MARKER, "Skipped malformed journal record at line {}. ", lineNumber, e);
+            }
         }
     }
 
@@ -134,112 +234,978 @@ final class CacheStorage implements HttpCacheStorage {
         return Streams.stream(list).map(e -> BasicLineParser.parseHeader(e.getAsString(), null)).toArray(Header[]::new);
     }
 
-    private void save() {
-        var root = new JsonObject();
-        synchronized (this.entries) {
-            saveJson(this.entries, root);
+    private boolean compact() {
+        try {
+            // the whole compaction holds the storage lock, since records appended by other processes
+            // during the compaction could not be told apart from the ones included in the snapshot
+            return this.withStorageLock(() -> {
+                var state = this.state;
+                var newIndex = state.index().write(this.parentPath, this.tempPath, snapshot(state));
+                this.truncateJournal();
+                // removed keys are not in the new index, and lookups still using the old state should never
+                // decode anything from the old index into the maps of the new state
+                var entries = new ConcurrentHashMap<>(state.entries());
+                this.state = new State(newIndex, entries, ConcurrentHashMap.newKeySet());
+                state.index().deleteFile(this.parentPath);
+                return true;
+            });
+        } catch (Exception e) {
+            LOGGER.warn(MARKER, "Failed to compact cache storage. ", e);
+            return false;
         }
-        synchronized (this.keyLock) {
-            try (var writer = Files.newBufferedWriter(this.keyFilePath, StandardCharsets.UTF_8)) {
-                GSON.toJson(root, writer);
-            } catch (Exception e) {
-                LOGGER.warn(MARKER, "Failed to save cache storage. ", e);
+    }
+
+    private static Map<String, ByteBuffer> snapshot(State state) {
+        var records = new LinkedHashMap<String, ByteBuffer>(state.index().size() + state.entries().size());
+        // records which have never been decoded are copied as they are
+        state.index().forEachRaw((key, raw) -> {
+            if (!state.removedKeys().contains(key)) {
+                records.put(key, raw);
             }
+        });
+        state.entries().forEach((key, stored) -> records.put(key, CacheIndex.encode(key, stored)));
+        return records;
+    }
+
+    /**
+     * Writes all the entries, together with their bodies, into a bundle.
+     *
+     * @return the count of entries written
+     */
+    public int exportBundle(Path bundlePath) throws IOException {
+        var records = snapshot(this.state);
+        try (var writer = new CacheBundle.Writer(bundlePath, this.tempPath)) {
+            for (var record : records.entrySet()) {
+                var path = (Path) null;
+                try {
+                    path = CacheIndex.decode(record.getValue().duplicate()).path();
+                } catch (RuntimeException e) {
+                    LOGGER.warn(MARKER, "Skipped malformed cache entry {} while exporting. ", record.getKey(), e);
+                    continue;
+                }
+                // a body should not be deleted while it is being copied, but the lock is only held for one
+                // body at a time, so that publishing is never stalled by the whole export, and the bodies
+                // deleted after the snapshot are simply skipped
+                this.publishLock.readLock().lock();
+                try {
+                    if (Files.isRegularFile(path)) {
+                        writer.add(record.getKey(), record.getValue(), path);
+                    }
+                } finally {
+                    this.publishLock.readLock().unlock();
+                }
+            }
+            writer.finish();
+            return writer.getCount();
+        }
+    }
+
+    /**
+     * Reads all the entries from a bundle, and keeps the ones which are newer than the existing ones.
+     * Imported entries are validated with remote servers in the same way as the downloaded ones.
+     *
+     * @return the count of entries imported
+     */
+    public int importBundle(Path bundlePath) throws IOException {
+        var importedCount = new AtomicInteger();
+        CacheBundle.read(bundlePath, (key, record, body) -> {
+            var stored = CacheIndex.decode(record);
+            var fileName = stored.path().getFileName().toString();
+            var contentHash = FilenameAllocation.parseSha1HashName(fileName)
+                    .orElseThrow(() -> new IOException("Unrecognized body " + fileName + " in cache bundle"));
+            var path = this.parentPath.resolve(fileName);
+            var tmp = (Path) null;
+            try {
+                if (body != null && !Files.isRegularFile(path)) {
+                    tmp = Files.createTempFile(this.tempPath, "slideshow-", ".tmp");
+                    @SuppressWarnings("deprecation") var hashing = new HashingInputStream(Hashing.sha1(), body);
+                    Files.copy(hashing, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    if (!contentHash.equals(hashing.hash())) {
+                        throw new IOException("Corrupted body " + fileName + " in cache bundle");
+                    }
+                }
+                if (this.importEntry(key, stored, path, tmp)) {
+                    importedCount.incrementAndGet();
+                }
+            } finally {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        });
+        this.scheduleEvict();
+        return importedCount.get();
+    }
+
+    private boolean importEntry(String url, StoredEntry stored, Path path, @Nullable Path tmp) throws IOException {
+        var lock = this.entryLocks.get(url);
+        lock.lock();
+        try {
+            var existing = this.getLocked(url);
+            var entry = stored.entry();
+            if (existing != null && !existing.entry().getResponseDate().before(entry.getResponseDate())) {
+                return false;
+            }
+            var importedEntry = new StoredEntry(path, new HttpCacheEntry(entry.getRequestDate(),
+                    entry.getResponseDate(), entry.getStatusLine(), entry.getAllHeaders(),
+                    new ContentFileResource(path.toFile()), entry.getVariantMap()),
+                    stored.size(), System.currentTimeMillis());
+            this.publishLock.readLock().lock();
+            try {
+                return this.commit(putRecord(url, importedEntry), () -> {
+                    if (tmp != null) {
+                        moveAtomically(tmp, path);
+                    }
+                    if (!Files.isRegularFile(path)) {
+                        return false;
+                    }
+                    this.state.put(url, importedEntry);
+                    this.writeSidecar(url, importedEntry);
+                    return true;
+                });
+            } finally {
+                this.publishLock.readLock().unlock();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     private void load() {
-        var root = new JsonObject();
+        var index = CacheIndex.empty();
+        var legacyRoot = (JsonObject) null;
+        var journal = List.<String>of();
+        var corrupted = false;
         synchronized (this.keyLock) {
-            try (var reader = Files.newBufferedReader(this.keyFilePath, StandardCharsets.UTF_8)) {
-                root = GSON.fromJson(reader, JsonObject.class);
+            var fileLock = (FileLock) null;
+            try {
+                fileLock = this.lockChannel().lock();
+            } catch (IOException e) {
+                // the storage is still usable by this process, but it is not safe to be shared
+                LOGGER.warn(MARKER, "Failed to lock cache storage. ", e);
+            }
+            try {
+                index = CacheIndex.open(this.parentPath);
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to open cache storage index. ", e);
+                corrupted = true;
+            }
+            // the legacy json file is only read if it has never been migrated
+            if (index.size() == 0 && Files.exists(this.keyFilePath)) {
+                try (var reader = Files.newBufferedReader(this.keyFilePath, StandardCharsets.UTF_8)) {
+                    legacyRoot = GSON.fromJson(reader, JsonObject.class);
+                } catch (Exception e) {
+                    LOGGER.warn(MARKER, "Failed to load legacy cache storage. ", e);
+                    corrupted = true;
+                }
+            }
+            try {
+                journal = this.readJournal(0L);
             } catch (Exception e) {
-                LOGGER.warn(MARKER, "Failed to load cache storage. ", e);
+                LOGGER.warn(MARKER, "Failed to load cache storage journal. ", e);
+                corrupted = true;
+            }
+            if (fileLock != null) {
+                try {
+                    fileLock.release();
+                } catch (IOException e) {
+                    LOGGER.warn(MARKER, "Failed to unlock cache storage. ", e);
+                }
             }
         }
-        synchronized (this.entries) {
-            loadJson(this.entries, root);
+        var state = new State(index);
+        if (legacyRoot != null) {
+            loadJson(state.entries(), legacyRoot);
+        }
+        replayJournal(state, journal);
+        this.state = state;
+        this.markedDirty.set(journal.size());
+        if (corrupted) {
+            // lookups miss the lost entries until they are recovered
+            this.recovering.set(true);
+            CompletableFuture.runAsync(this::recover, this.executor)
+                    .whenComplete((v, e) -> this.recovering.set(false));
+        }
+        if (Files.exists(this.keyFilePath) && (legacyRoot == null || this.compact())) {
+            try {
+                Files.delete(this.keyFilePath);
+                LOGGER.info(MARKER, "Migrated legacy cache storage into the binary index. ");
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to delete legacy cache storage. ", e);
+            }
         }
     }
 
-    private void scheduleSave() {
-        if (this.markedDirty.getAndIncrement() == 0) {
-            var executor = CompletableFuture.delayedExecutor(5, TimeUnit.SECONDS, Util.backgroundExecutor());
-            CompletableFuture.runAsync(this::save, executor).thenRun(() -> {
-                var changes = this.markedDirty.getAndSet(0);
-                LOGGER.debug(MARKER, "Attempted to save {} change(s) to cache storage. ", changes);
+    /**
+     * Rebuilds the entries which have been lost with an unreadable index from the sidecars. Bodies are
+     * not read here, and they are verified against their names when they are looked up for the first
+     * time, so that recovering a large cache only takes a directory scan.
+     */
+    private void recover() {
+        var startMillis = System.currentTimeMillis();
+        var sidecarPaths = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(this.parentPath, "*" + CacheSidecar.EXTENSION)) {
+            stream.forEach(sidecarPaths::add);
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to scan cache storage for recovery. ", e);
+            return;
+        }
+        var recovered = new HashMap<String, StoredEntry>();
+        for (var sidecarPath : sidecarPaths) {
+            this.recoverBody(sidecarPath).forEach((key, stored) -> recovered.merge(key, stored, (a, b) ->
+                    a.entry().getResponseDate().before(b.entry().getResponseDate()) ? b : a));
+        }
+        var recoveredCount = 0;
+        try {
+            // entries changed since the start are kept, since they are always newer than the recovered ones
+            recoveredCount = this.withStorageLock(() -> {
+                var state = this.state;
+                var count = 0;
+                for (var entry : recovered.entrySet()) {
+                    var key = entry.getKey();
+                    var stored = entry.getValue();
+                    var existing = state.entries().containsKey(key) || state.removedKeys().contains(key)
+                            ? state.entries().get(key) : state.index().get(key);
+                    var responseDate = stored.entry().getResponseDate();
+                    if (existing == null || existing.entry().getResponseDate().before(responseDate)) {
+                        this.unverifiedPaths.add(stored.path());
+                        state.put(key, stored);
+                        count += 1;
+                    }
+                }
+                return count;
             });
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to recover cache entries. ", e);
         }
+        if (recoveredCount > 0) {
+            this.compact();
+        }
+        var elapsedMillis = System.currentTimeMillis() - startMillis;
+        LOGGER.info(MARKER, "Recovered {} cache entries from {} sidecar(s) in {} ms. ",
+                recoveredCount, sidecarPaths.size(), elapsedMillis);
     }
 
-    public CacheStorage(Path parentPath) {
-        this.keyLock = new Object();
-        this.parentPath = parentPath;
-        this.keyFilePath = this.parentPath.resolve("storage-keys.json");
-        if (Files.exists(this.keyFilePath)) {
-            this.load();
+    private Map<String, StoredEntry> recoverBody(Path sidecarPath) {
+        var path = CacheSidecar.getBodyPath(sidecarPath);
+        try {
+            if (!Files.isRegularFile(path)) {
+                LOGGER.warn(MARKER, "Deleted the sidecar of missing cache file {}. ", path);
+                Files.deleteIfExists(sidecarPath);
+                return Map.of();
+            }
+            var size = Files.size(path);
+            var result = new HashMap<String, StoredEntry>();
+            for (var record : CacheSidecar.read(sidecarPath).entrySet()) {
+                var entry = CacheIndex.decode(record.getValue()).entry();
+                // the body may have been moved together with the whole directory
+                result.put(record.getKey(), new StoredEntry(path, new HttpCacheEntry(entry.getRequestDate(),
+                        entry.getResponseDate(), entry.getStatusLine(), entry.getAllHeaders(),
+                        new ContentFileResource(path.toFile()), entry.getVariantMap()),
+                        size, entry.getResponseDate().getTime()));
+            }
+            return result;
+        } catch (Exception e) {
+            LOGGER.warn(MARKER, "Skipped malformed cache sidecar {}. ", sidecarPath, e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * Verifies the body of a recovered entry against its name. A corrupted body is deleted, together
+     * with every entry referring to it as soon as the entry is looked up, so that it is downloaded again.
+     *
+     * @return whether the body is intact
+     */
+    private boolean verify(String url, StoredEntry stored) {
+        var path = stored.path();
+        try {
+            if (CacheSidecar.verify(path)) {
+                this.unverifiedPaths.remove(path);
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to verify cache file {}. ", path, e);
+        }
+        LOGGER.warn(MARKER, "Discarded missing or corrupted cache file {}. ", path);
+        this.removeEntry(url);
+        this.publishLock.writeLock().lock();
+        try {
+            // a body downloaded again would never replace the corrupted one with the same name otherwise
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(CacheSidecar.resolve(path));
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to delete corrupted cache file {}. ", path, e);
+        } finally {
+            this.publishLock.writeLock().unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Records the entry next to its body, so that it could be recovered if the index is corrupted.
+     * The caller should hold the lock of the key and the storage lock.
+     */
+    private void writeSidecar(String url, StoredEntry stored) {
+        try {
+            CacheSidecar.put(stored.path(), this.tempPath, url, CacheIndex.encode(url, stored));
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to write cache sidecar of {}. ", stored.path(), e);
+        }
+    }
+
+    private long journalSize() {
+        try {
+            return Files.exists(this.journalFilePath) ? Files.size(this.journalFilePath) : 0L;
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Reads the records from the given offset to the end, and moves the offset to the end.
+     * The caller should hold the storage lock.
+     */
+    private List<String> readJournal(long offset) throws IOException {
+        if (!Files.exists(this.journalFilePath)) {
+            this.journalOffset = 0L;
+            return List.of();
+        }
+        var options = new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (var channel = FileChannel.open(this.journalFilePath, options)) {
+            var tail = ByteBuffer.allocate(Math.toIntExact(Math.max(0L, channel.size() - offset)));
+            while (tail.hasRemaining() && channel.read(tail, offset + tail.position()) >= 0) {
+                // read all the records appended after the offset
+            }
+            var end = tail.position();
+            while (end > 0 && tail.get(end - 1) != '\n') {
+                end -= 1;
+            }
+            if (end < tail.position()) {
+                // records are appended with the storage lock held, so that a record without its line break
+                // has been torn by a crash rather than being appended now, which is simply truncated
+                LOGGER.warn(MARKER, "Truncated a torn journal record of {} byte(s). ", tail.position() - end);
+                channel.truncate(offset + end);
+            }
+            this.journalOffset = offset + end;
+            return new String(tail.array(), 0, end, StandardCharsets.UTF_8).lines().toList();
+        }
+    }
+
+    private void truncateJournal() throws IOException {
+        Files.write(this.journalFilePath, new byte[0]);
+        this.journalOffset = 0L;
+    }
+
+    /**
+     * Replays the changes made by other processes since the last time. The caller should hold the
+     * storage lock.
+     */
+    private void catchUp() throws IOException {
+        if (this.state.index().isSuperseded(this.parentPath)) {
+            // the journal has been compacted into a newer index, so that everything is loaded again aside,
+            // and then published as a whole since lookups never wait for the storage lock
+            var state = new State(CacheIndex.open(this.parentPath));
+            replayJournal(state, this.readJournal(0L));
+            this.state = state;
+            return;
+        }
+        var journalSize = this.journalSize();
+        if (journalSize != this.journalOffset) {
+            replayJournal(this.state, this.readJournal(Math.min(journalSize, this.journalOffset)));
+        }
+    }
+
+    /**
+     * Runs the action with both the lock of this process and the file lock shared by all the processes
+     * held, after the changes made by other processes have been replayed.
+     */
+    private <T> T withStorageLock(StorageAction<T> action) throws IOException {
+        synchronized (this.keyLock) {
+            try (var ignored = this.lockChannel().lock()) {
+                this.catchUp();
+                return action.run();
+            }
+        }
+    }
+
+    /**
+     * Other processes always append to (or truncate) the journal when they change the storage, so that
+     * nothing else is checked if the journal looks the same as the last time.
+     *
+     * @return whether other processes may have changed the storage since the last time, which is checked
+     * without any lock
+     */
+    private boolean isBehind() {
+        var journalSize = -1L;
+        var journalMillis = -1L;
+        try {
+            var attributes = Files.readAttributes(this.journalFilePath, BasicFileAttributes.class);
+            journalSize = attributes.size();
+            journalMillis = attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            // the journal has not been created yet
+        }
+        if (journalSize == this.checkedJournalSize && journalMillis == this.checkedJournalMillis) {
+            return false;
+        }
+        this.checkedJournalSize = journalSize;
+        this.checkedJournalMillis = journalMillis;
+        return Math.max(journalSize, 0L) != this.journalOffset || this.state.index().isSuperseded(this.parentPath);
+    }
+
+    /**
+     * Replays the changes made by other processes in the background, so that lookups never wait for
+     * the file system. Entries published by other processes are found by the lookups after that.
+     */
+    private void scheduleCatchUp() {
+        if (this.catchingUp.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    if (this.isBehind()) {
+                        this.withStorageLock(() -> null);
+                    }
+                } catch (IOException e) {
+                    // the journal is checked again next time since it is changed after the last check
+                    this.checkedJournalSize = -1L;
+                    LOGGER.debug(MARKER, "Failed to catch up with other processes. ", e);
+                }
+            }, this.executor).whenComplete((v, e) -> this.catchingUp.set(false));
+        }
+    }
+
+    private FileChannel lockChannel() throws IOException {
+        var channel = this.lockChannel;
+        // interrupting a thread which is waiting for the lock closes the channel
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(this.lockFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.lockChannel = channel;
+        }
+        return channel;
+    }
+
+    /**
+     * Changes the entries and appends the record to the journal atomically, so that other processes
+     * see either both of them or neither. The change runs before the record is appended, and nothing
+     * is appended if the change returns false.
+     */
+    private boolean commit(JsonObject record, StorageAction<Boolean> change) throws IOException {
+        var bytes = (GSON.toJson(record) + '\n').getBytes(StandardCharsets.UTF_8);
+        var changed = this.withStorageLock(() -> {
+            if (!change.run()) {
+                return false;
+            }
+            try {
+                Files.write(this.journalFilePath, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                this.journalOffset += bytes.length;
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to append to cache storage journal. ", e);
+            }
+            return true;
+        });
+        if (changed) {
+            this.scheduleCompact();
         }
-        this.referenceQueue = new ReferenceQueue<>();
-        this.resourceReferenceHolder = Sets.newConcurrentHashSet();
+        return changed;
     }
 
-    private void keepResourceReference(final HttpCacheEntry entry) {
-        var resource = entry.getResource();
-        if (resource != null) {
-            // Must deallocate the resource when the entry is no longer in used
-            var ref = new ResourceReference(entry, this.referenceQueue);
-            this.resourceReferenceHolder.add(ref);
+    /**
+     * Files are content addressed so that an existing file always has the same content, which is never
+     * replaced, since replacing a file mapped into memory fails on some platforms (e.g. on Windows).
+     *
+     * @return false if the temporary file has been deleted instead since the path exists already
+     */
+    static boolean moveAtomically(Path tmp, Path path) throws IOException {
+        if (Files.exists(path)) {
+            Files.deleteIfExists(tmp);
+            return false;
         }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException | AccessDeniedException e) {
+            // the same file may have been published by another process just now
+            if (!Files.exists(path)) {
+                throw e;
+            }
+            Files.deleteIfExists(tmp);
+            return false;
+        }
+    }
+
+    private void scheduleCompact() {
+        if (this.markedDirty.incrementAndGet() >= COMPACT_THRESHOLD && this.compacting.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                var changes = this.markedDirty.getAndSet(0);
+                this.compact();
+                LOGGER.debug(MARKER, "Compacted {} journal record(s) into cache storage. ", changes);
+            }, this.executor).whenComplete((v, e) -> this.compacting.set(false));
+        }
+    }
+
+    private void scheduleEvict() {
+        if (this.evicting.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::evict,
+                    this.executor).whenComplete((v, e) -> this.evicting.set(false));
+        }
+    }
+
+    private void evict() {
+        var state = this.state;
+        var candidates = new ArrayList<Candidate>(state.index().size() + state.entries().size());
+        state.entries().forEach((key, stored) -> candidates.add(new Candidate(key, stored)));
+        // entries which have never been decoded are summarized without decoding headers
+        state.index().forEach((key, path, size, lastAccess) -> {
+            if (!state.entries().containsKey(key) && !state.removedKeys().contains(key)) {
+                candidates.add(new Candidate(key, path, size, lastAccess, null));
+            }
+        });
+        // decoded pixels are counted together with the image they are decoded from, and evicted together
+        var fileSizes = new HashMap<Path, Long>(candidates.size());
+        candidates.forEach(candidate -> fileSizes.put(candidate.path(),
+                candidate.size() + this.pixelSize(candidate.path())));
+        var totalBytes = fileSizes.values().stream().mapToLong(Long::longValue).sum();
+        if (totalBytes <= this.maxBytes && candidates.size() <= this.maxEntries) {
+            return;
+        }
+        // least recently used entries come first
+        candidates.sort(Comparator.comparingLong(Candidate::lastAccess));
+        var evictedCount = 0;
+        var evictedBytes = 0L;
+        var entryCount = candidates.size();
+        for (var from = 0; from < candidates.size(); from += EVICT_BATCH_SIZE) {
+            if (totalBytes - evictedBytes <= this.maxBytes && entryCount <= this.maxEntries) {
+                break;
+            }
+            var batch = candidates.subList(from, Math.min(from + EVICT_BATCH_SIZE, candidates.size()));
+            var unreferencedPaths = new HashSet<Path>(batch.size());
+            // files are deleted once per batch, so that the bytes of the evicted ones are estimated here
+            var pendingBytes = 0L;
+            for (var candidate : batch) {
+                if (totalBytes - evictedBytes - pendingBytes <= this.maxBytes && entryCount <= this.maxEntries) {
+                    break;
+                }
+                var key = candidate.key();
+                var lock = this.entryLocks.get(key);
+                lock.lock();
+                try {
+                    var evicted = this.commit(removeRecord(key), () -> {
+                        // entries changed (or decoded, which means used) after the snapshot are skipped
+                        var current = this.state;
+                        var stored = current.entries().get(key);
+                        var unchanged = stored == null
+                                ? candidate.stored() == null && !current.removedKeys().contains(key)
+                                : stored == candidate.stored();
+                        if (unchanged) {
+                            current.remove(key);
+                        }
+                        return unchanged;
+                    });
+                    if (evicted) {
+                        if (unreferencedPaths.add(candidate.path())) {
+                            pendingBytes += fileSizes.get(candidate.path());
+                        }
+                        evictedCount += 1;
+                        entryCount -= 1;
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn(MARKER, "Failed to evict cache entry {}. ", key, e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            this.publishLock.writeLock().lock();
+            try {
+                evictedBytes += this.withStorageLock(() -> {
+                    // files are content addressed so that they may be shared by other entries,
+                    // including the ones published by other processes and replayed just now
+                    var current = this.state;
+                    current.entries().values().forEach(stored -> unreferencedPaths.remove(stored.path()));
+                    current.index().forEach((key, path, size, lastAccess) -> {
+                        if (!current.removedKeys().contains(key)) {
+                            unreferencedPaths.remove(path);
+                        }
+                    });
+                    return this.deleteFiles(unreferencedPaths, fileSizes);
+                });
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to delete evicted cache files. ", e);
+            } finally {
+                this.publishLock.writeLock().unlock();
+            }
+        }
+        LOGGER.debug(MARKER, "Evicted {} cache entries ({} bytes) from cache storage. ", evictedCount, evictedBytes);
+    }
+
+    /**
+     * Deletes the files which are not referenced by any entry (bodies, together with their sidecars and
+     * decoded pixels), and temporary files which have been left behind (e.g. by a crash) before the
+     * given time. Only deleting holds the exclusive publishing lock and the storage lock, while scanning
+     * the directories holds neither.
+     *
+     * @return the count of bytes reclaimed
+     */
+    public long collectGarbage(long staleBefore) throws IOException {
+        if (this.recovering.get()) {
+            LOGGER.debug(MARKER, "Skipped collecting garbage since cache storage is being recovered. ");
+            return 0L;
+        }
+        var reclaimedBytes = 0L;
+        try (var stream = Files.newDirectoryStream(this.tempPath)) {
+            for (var path : stream) {
+                reclaimedBytes += deleteIfStale(path, staleBefore);
+            }
+        }
+        var bodyPaths = new ArrayList<Path>();
+        var sidecarPaths = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(this.parentPath, Files::isRegularFile)) {
+            for (var path : stream) {
+                if (CacheSidecar.isSidecar(path)) {
+                    sidecarPaths.add(path);
+                } else if (FilenameAllocation.parseSha1HashName(path.getFileName().toString()).isPresent()) {
+                    bodyPaths.add(path);
+                }
+            }
+        }
+        var pixelsPath = PixelCache.resolveDirectory(this.parentPath);
+        var pixelPaths = new ArrayList<Path>();
+        if (Files.isDirectory(pixelsPath)) {
+            try (var stream = Files.newDirectoryStream(pixelsPath, Files::isRegularFile)) {
+                stream.forEach(pixelPaths::add);
+            }
+        }
+        this.publishLock.writeLock().lock();
+        try {
+            reclaimedBytes += this.withStorageLock(() -> this.sweep(bodyPaths, sidecarPaths, pixelPaths));
+        } finally {
+            this.publishLock.writeLock().unlock();
+        }
+        return reclaimedBytes;
+    }
+
+    /**
+     * Files are published with the storage lock held, so that the files found by the scan but published
+     * after it (by any process) are always referenced here. The caller should hold the storage lock.
+     */
+    private long sweep(List<Path> bodyPaths, List<Path> sidecarPaths, List<Path> pixelPaths) {
+        var reclaimedBytes = 0L;
+        var state = this.state;
+        var referencedNames = new HashSet<String>(state.index().size() + state.entries().size());
+        state.entries().values().forEach(stored -> referencedNames.add(stored.path().getFileName().toString()));
+        state.index().forEach((key, path, size, lastAccess) -> {
+            if (!state.removedKeys().contains(key)) {
+                referencedNames.add(path.getFileName().toString());
+            }
+        });
+        var referencedHashes = new HashSet<String>(referencedNames.size());
+        for (var name : referencedNames) {
+            FilenameAllocation.parseSha1HashName(name).ifPresent(hash -> referencedHashes.add(hash.toString()));
+        }
+        for (var path : bodyPaths) {
+            if (!referencedNames.contains(path.getFileName().toString())) {
+                reclaimedBytes += deleteQuietly(path);
+            }
+        }
+        for (var path : sidecarPaths) {
+            if (!referencedNames.contains(CacheSidecar.getBodyPath(path).getFileName().toString())) {
+                reclaimedBytes += deleteQuietly(path);
+            }
+        }
+        for (var path : pixelPaths) {
+            var contentHash = FilenameAllocation.parseSha1HashName(path.getFileName().toString());
+            if (contentHash.isPresent() && !referencedHashes.contains(contentHash.get().toString())) {
+                reclaimedBytes += this.pixelCache.delete(contentHash.get());
+            }
+        }
+        return reclaimedBytes;
+    }
+
+    /**
+     * @return the size of the file if it has been deleted, otherwise zero
+     */
+    static long deleteIfStale(Path path, long staleBefore) {
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() < staleBefore) {
+                return deleteQuietly(path);
+            }
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to check cache file {}. ", path, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * @return the size of the file if it has been deleted, otherwise zero
+     */
+    static long deleteQuietly(Path path) {
+        try {
+            var size = Files.size(path);
+            return Files.deleteIfExists(path) ? size : 0L;
+        } catch (IOException e) {
+            // the file may be still mapped, and it will be deleted next time
+            LOGGER.debug(MARKER, "Failed to delete cache file {}. ", path, e);
+            return 0L;
+        }
+    }
+
+    private long pixelSize(Path path) {
+        var contentHash = FilenameAllocation.parseSha1HashName(path.getFileName().toString());
+        return contentHash.isPresent() ? this.pixelCache.size(contentHash.get()) : 0L;
+    }
+
+    private long deleteFiles(Set<Path> paths, Map<Path, Long> fileSizes) {
+        var deletedBytes = 0L;
+        for (var path : paths) {
+            try {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(CacheSidecar.resolve(path));
+                deletedBytes += fileSizes.getOrDefault(path, 0L);
+                // decoded pixels are useless without the image they are decoded from
+                var contentHash = FilenameAllocation.parseSha1HashName(path.getFileName().toString());
+                if (contentHash.isPresent()) {
+                    this.pixelCache.delete(contentHash.get());
+                }
+            } catch (IOException e) {
+                LOGGER.debug(MARKER, "Failed to delete evicted cache file {}. ", path, e);
+            }
+        }
+        return deletedBytes;
+    }
+
+    public CacheStorage(Path parentPath, long maxBytes, int maxEntries, Executor executor) throws IOException {
+        this.executor = executor;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.parentPath = parentPath;
+        this.tempPath = Files.createDirectories(parentPath.resolve("tmp"));
+        this.keyFilePath = this.parentPath.resolve("storage-keys.json");
+        this.journalFilePath = this.parentPath.resolve("storage-keys.journal");
+        this.lockFilePath = this.parentPath.resolve("storage.lock");
+        this.keyLock = KEY_LOCKS.computeIfAbsent(this.lockFilePath.toAbsolutePath().normalize(), k -> new Object());
+        this.pixelCache = new PixelCache(parentPath, this.tempPath, this::scheduleEvict);
+        this.load();
+        CompletableFuture.runAsync(() -> {
+            try {
+                this.pixelCache.scan();
+                this.scheduleEvict();
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to scan decoded pixels. ", e);
+            }
+        }, executor);
+    }
+
+    private static JsonObject putRecord(String url, StoredEntry stored) {
+        return Util.make(new JsonObject(), record -> {
+            record.addProperty("put", url);
+            record.add("entry", toJson(stored));
+        });
+    }
+
+    private static JsonObject removeRecord(String url) {
+        return Util.make(new JsonObject(), record -> record.addProperty("remove", url));
+    }
+
+    public Path getTempPath() {
+        return this.tempPath;
+    }
+
+    public PixelCache getPixelCache() {
+        return this.pixelCache;
+    }
+
+    public CacheResourceFactory createResourceFactory() {
+        return new CacheResourceFactory(this.tempPath);
     }
 
     @Nullable
     @Override
     public HttpCacheEntry getEntry(String url) {
-        synchronized (this.entries) {
-            var pair = this.entries.get(url);
-            return pair != null ? pair.getValue() : null;
+        var state = this.state;
+        var stored = state.entries().get(url);
+        if (stored == null && !state.index().contains(url)) {
+            // the entry may have been published by another process sharing the directory
+            this.scheduleCatchUp();
         }
+        if (stored == null && state.index().contains(url)) {
+            var lock = this.entryLocks.get(url);
+            lock.lock();
+            try {
+                stored = this.getLocked(url);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (stored != null && this.unverifiedPaths.contains(stored.path()) && !this.verify(url, stored)) {
+            return null;
+        }
+        if (stored != null) {
+            stored.lastAccess().set(System.currentTimeMillis());
+            return stored.entry();
+        }
+        return null;
     }
 
     @Override
     public void putEntry(String url, HttpCacheEntry entry) throws IOException {
-        synchronized (this.entries) {
-            var normalizedEntry = normalize(this.parentPath, entry);
-            this.entries.put(url, normalizedEntry);
-            this.keepResourceReference(entry);
+        var lock = this.entryLocks.get(url);
+        lock.lock();
+        try {
+            this.publish(url, entry);
+        } finally {
+            lock.unlock();
         }
-        this.scheduleSave();
+        this.scheduleEvict();
     }
 
     @Override
     public void removeEntry(String url) {
-        synchronized (this.entries) {
-            this.entries.remove(url);
+        var lock = this.entryLocks.get(url);
+        lock.lock();
+        try {
+            this.commit(removeRecord(url), () -> this.state.remove(url));
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to remove cache entry {}. ", url, e);
+        } finally {
+            lock.unlock();
         }
-        this.scheduleSave();
     }
 
     @Override
     public void updateEntry(String url, HttpCacheUpdateCallback cb) throws IOException {
-        synchronized (this.entries) {
-            var pair = this.entries.get(url);
-            this.entries.put(url, normalize(this.parentPath, cb.update(pair != null ? pair.getValue() : null)));
-            var existing = this.entries.get(url).getValue();
-            var updated = cb.update(existing);
-            if (existing != updated) {
-                this.keepResourceReference(updated);
+        var lock = this.entryLocks.get(url);
+        lock.lock();
+        try {
+            var stored = this.getLocked(url);
+            this.publish(url, cb.update(stored != null ? stored.entry() : null));
+        } finally {
+            lock.unlock();
+        }
+        this.scheduleEvict();
+    }
+
+    /**
+     * Looks up the entry, and decodes it from the index if it has not been decoded yet.
+     * The caller should hold the lock of the key.
+     */
+    @Nullable
+    private StoredEntry getLocked(String url) {
+        var state = this.state;
+        var stored = state.entries().get(url);
+        if (stored == null && !state.removedKeys().contains(url)) {
+            // records replayed meanwhile (with the storage lock held) are never overwritten by the decoded one
+            var decoded = state.index().get(url);
+            if (decoded != null && state.entries().putIfAbsent(url, decoded) == null
+                    && state.removedKeys().contains(url)) {
+                state.entries().remove(url, decoded);
+            }
+            stored = state.entries().get(url);
+        }
+        return stored;
+    }
+
+    /**
+     * Normalizes the entry without any global lock, and then publishes the file and the entry atomically
+     * (with the storage lock held, so that it is never interleaved with other processes).
+     * The caller should hold the lock of the key.
+     */
+    private void publish(String url, HttpCacheEntry entry) throws IOException {
+        if (entry.getResource() instanceof ContentFileResource resource && this.isStored(resource.getPath())) {
+            // the body is unchanged (e.g. 304 not modified), so that only headers and dates are rewritten
+            this.publishUnchanged(url, entry, resource.getPath());
+            return;
+        }
+        if (entry.getResource() instanceof TempFileResource resource) {
+            // the body has been hashed while it was being received, so that the same file is moved into place
+            var normalizedEntry = normalize(this.parentPath, entry, resource.getContentHash(), resource.getPath());
+            this.publish(url, normalizedEntry, () -> resource.publish(normalizedEntry.path()));
+            return;
+        }
+        var tmp = Files.createTempFile(this.tempPath, "slideshow-", ".tmp");
+        try {
+            var normalizedEntry = normalize(this.parentPath, entry, copy(entry.getResource(), tmp), tmp);
+            this.publish(url, normalizedEntry, () -> moveAtomically(tmp, normalizedEntry.path()));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void publishUnchanged(String url, HttpCacheEntry entry, Path path) throws IOException {
+        var stored = this.getLocked(url);
+        var size = stored != null && stored.path().equals(path) ? stored.size() : Files.size(path);
+        var updatedEntry = new StoredEntry(path, entry, size, System.currentTimeMillis());
+        this.publishLock.readLock().lock();
+        try {
+            this.commit(putRecord(url, updatedEntry), () -> {
+                // the body may have been deleted by another process after it removed the entry
+                if (!Files.isRegularFile(path)) {
+                    return false;
+                }
+                this.state.put(url, updatedEntry);
+                this.writeSidecar(url, updatedEntry);
+                return true;
+            });
+        } finally {
+            this.publishLock.readLock().unlock();
+        }
+    }
+
+    private boolean isStored(Path path) {
+        var parent = path.toAbsolutePath().normalize().getParent();
+        return parent != null && parent.equals(this.parentPath.toAbsolutePath().normalize());
+    }
+
+    private void publish(String url, StoredEntry normalizedEntry, StorageAction<Boolean> move) throws IOException {
+        this.publishLock.readLock().lock();
+        try {
+            this.commit(putRecord(url, normalizedEntry), () -> {
+                move.run();
+                this.state.put(url, normalizedEntry);
+                this.writeSidecar(url, normalizedEntry);
+                return true;
+            });
+        } finally {
+            this.publishLock.readLock().unlock();
+        }
+    }
+
+    record StoredEntry(Path path, HttpCacheEntry entry, long size, AtomicLong lastAccess) {
+        StoredEntry(Path path, HttpCacheEntry entry, long size, long lastAccess) {
+            this(path, entry, size, new AtomicLong(lastAccess));
+        }
+    }
+
+    @FunctionalInterface
+    private interface StorageAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Entries decoded from the index or changed since the index was written, and keys removed since then.
+     * A newer index is published together with the entries replayed on it, so that lookups see either the
+     * whole state before the change or the whole state after it.
+     */
+    private record State(CacheIndex index, Map<String, StoredEntry> entries, Set<String> removedKeys) {
+        State(CacheIndex index) {
+            this(index, new ConcurrentHashMap<>(), ConcurrentHashMap.newKeySet());
+        }
+
+        void put(String key, StoredEntry stored) {
+            this.entries.put(key, stored);
+            this.removedKeys.remove(key);
+        }
+
+        boolean remove(String key) {
+            var removed = this.entries.remove(key) != null;
+            if (this.index.contains(key) && this.removedKeys.add(key)) {
+                removed = true;
             }
+            return removed;
         }
-        this.scheduleSave();
     }
 
-    public int cleanResources() {
-        var ref = (ResourceReference) null;
-        var prevCount = this.resourceReferenceHolder.size();
-        while ((ref = (ResourceReference) this.referenceQueue.poll()) != null) {
-            this.resourceReferenceHolder.remove(ref);
-            ref.getResource().dispose();
+    private record Candidate(String key, Path path, long size, long lastAccess, @Nullable StoredEntry stored) {
+        private Candidate(String key, StoredEntry stored) {
+            this(key, stored.path(), stored.size(), stored.lastAccess().get(), stored);
         }
-        return prevCount - this.resourceReferenceHolder.size();
     }
 }
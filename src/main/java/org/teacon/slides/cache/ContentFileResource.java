@@ -0,0 +1,64 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.impl.client.cache.FileResource;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A file resource whose file is named after the SHA-1 of its content. The content hash is carried by
+ * the stream, so that it could be recognized after passing through the caching layer of http client.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class ContentFileResource extends FileResource {
+
+    private final File file;
+    private final @Nullable HashCode contentHash;
+
+    public ContentFileResource(File file) {
+        super(file);
+        this.file = file;
+        this.contentHash = FilenameAllocation.parseSha1HashName(file.getName()).orElse(null);
+    }
+
+    public Path getPath() {
+        return this.file.toPath();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws FileNotFoundException {
+        return new Stream(this.file, this.contentHash);
+    }
+
+    /**
+     * Content files may be shared by several entries, so that they are only deleted by eviction.
+     */
+    @Override
+    public synchronized void dispose() {
+        // do nothing here
+    }
+
+    public static final class Stream extends FileInputStream {
+        private final @Nullable HashCode contentHash;
+
+        private Stream(File file, @Nullable HashCode contentHash) throws FileNotFoundException {
+            super(file);
+            this.contentHash = contentHash;
+        }
+
+        @Nullable
+        public HashCode getContentHash() {
+            return this.contentHash;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.params.HttpParams;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schedules the requests actually sent to remote servers (i.e. not served by the cache). A request
+ * waits for both a permit of its host and a global permit, and holds them until its response is
+ * closed. Response bodies are metered, and optionally shaped by a token bucket shared by all requests.
+ * <p>
+ * Permits of a host are dropped as soon as no request to the host is running or waiting, so that
+ * visiting many hosts over a long session does not keep one semaphore for each of them forever.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class DownloadScheduler {
+
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final int maxTotal;
+    private final int maxPerHost;
+    private final Semaphore globalPermits;
+    private final ConcurrentHashMap<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+
+    private final Object bucketLock = new Object();
+    private final long bytesPerSecond;
+    private long tokens;
+    private long lastRefillNanos;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * @param maxTotal       the max count of concurrent requests
+     * @param maxPerHost     the max count of concurrent requests to the same host
+     * @param bytesPerSecond the max count of bytes received per second, or non-positive if unlimited
+     */
+    public DownloadScheduler(int maxTotal, int maxPerHost, long bytesPerSecond) {
+        this.maxTotal = maxTotal;
+        this.maxPerHost = maxPerHost;
+        this.globalPermits = new Semaphore(maxTotal, true);
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public ClientExecChain decorate(ClientExecChain mainExec) {
+        return (route, request, context, execAware) -> {
+            var permit = this.acquire(route.getTargetHost().toHostString());
+            try {
+                var response = mainExec.execute(route, request, context, execAware);
+                var entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(new ThrottledEntity(entity));
+                }
+                return new ScheduledResponse(response, permit);
+            } catch (IOException | HttpException | RuntimeException e) {
+                permit.run();
+                throw e;
+            }
+        };
+    }
+
+    private Runnable acquire(String host) throws InterruptedIOException {
+        // the users are counted in the map, so that the permits are never dropped while being used
+        var hostPermit = this.hostPermits.compute(host,
+                (k, v) -> (v == null ? new HostPermits(this.maxPerHost) : v).join());
+        this.queued.increment();
+        try {
+            hostPermit.semaphore.acquire();
+            try {
+                this.globalPermits.acquire();
+            } catch (InterruptedException e) {
+                hostPermit.semaphore.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            this.leave(host);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection to " + host);
+        } finally {
+            this.queued.decrement();
+        }
+        this.active.increment();
+        var released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                this.active.decrement();
+                this.globalPermits.release();
+                hostPermit.semaphore.release();
+                this.leave(host);
+            }
+        };
+    }
+
+    private void leave(String host) {
+        this.hostPermits.computeIfPresent(host, (k, v) -> v.leave() ? null : v);
+    }
+
+    private void consume(int bytes) throws InterruptedIOException {
+        this.receivedBytes.add(bytes);
+        if (this.bytesPerSecond <= 0) {
+            return;
+        }
+        var waitNanos = 0L;
+        synchronized (this.bucketLock) {
+            var now = System.nanoTime();
+            var refill = (now - this.lastRefillNanos) * this.bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            if (refill > 0) {
+                // burst is limited to the bytes of one second
+                this.tokens = Math.min(this.bytesPerSecond, this.tokens + refill);
+                this.lastRefillNanos = now;
+            }
+            // tokens could be negative, which means that the following readers should wait longer
+            this.tokens -= bytes;
+            if (this.tokens < 0) {
+                waitNanos = -this.tokens * TimeUnit.SECONDS.toNanos(1) / this.bytesPerSecond;
+            }
+        }
+        if (waitNanos > 0) {
+            this.throttledNanos.add(waitNanos);
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while being throttled");
+            }
+        }
+    }
+
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    public int getMaxPerHost() {
+        return this.maxPerHost;
+    }
+
+    public long getQueuedCount() {
+        return this.queued.sum();
+    }
+
+    public long getActiveCount() {
+        return this.active.sum();
+    }
+
+    public long getReceivedBytes() {
+        return this.receivedBytes.sum();
+    }
+
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.throttledNanos.sum());
+    }
+
+    // only changed inside the computation of the map, which is synchronized on the key
+    private static final class HostPermits {
+        private final Semaphore semaphore;
+        private int users;
+
+        private HostPermits(int maxPerHost) {
+            this.semaphore = new Semaphore(maxPerHost, true);
+        }
+
+        private HostPermits join() {
+            this.users += 1;
+            return this;
+        }
+
+        /**
+         * @return whether the permits are no longer used
+         */
+        private boolean leave() {
+            this.users -= 1;
+            return this.users <= 0;
+        }
+    }
+
+    /**
+     * Delegates everything to the response, and runs the action after the response is closed.
+     */
+    @SuppressWarnings("deprecation")
+    private static final class ScheduledResponse implements CloseableHttpResponse {
+        private final CloseableHttpResponse response;
+        private final Runnable closeAction;
+
+        private ScheduledResponse(CloseableHttpResponse response, Runnable closeAction) {
+            this.response = response;
+            this.closeAction = closeAction;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.response.close();
+            } finally {
+                this.closeAction.run();
+            }
+        }
+
+        @Override
+        public StatusLine getStatusLine() {
+            return this.response.getStatusLine();
+        }
+
+        @Override
+        public void setStatusLine(StatusLine statusline) {
+            this.response.setStatusLine(statusline);
+        }
+
+        @Override
+        public void setStatusLine(ProtocolVersion ver, int code) {
+            this.response.setStatusLine(ver, code);
+        }
+
+        @Override
+        public void setStatusLine(ProtocolVersion ver, int code, String reason) {
+            this.response.setStatusLine(ver, code, reason);
+        }
+
+        @Override
+        public void setStatusCode(int code) {
+            this.response.setStatusCode(code);
+        }
+
+        @Override
+        public void setReasonPhrase(String reason) {
+            this.response.setReasonPhrase(reason);
+        }
+
+        @Nullable
+        @Override
+        public HttpEntity getEntity() {
+            return this.response.getEntity();
+        }
+
+        @Override
+        public void setEntity(@Nullable HttpEntity entity) {
+            this.response.setEntity(entity);
+        }
+
+        @Override
+        public Locale getLocale() {
+            return this.response.getLocale();
+        }
+
+        @Override
+        public void setLocale(Locale loc) {
+            this.response.setLocale(loc);
+        }
+
+        @Override
+        public ProtocolVersion getProtocolVersion() {
+            return this.response.getProtocolVersion();
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return this.response.containsHeader(name);
+        }
+
+        @Override
+        public Header[] getHeaders(String name) {
+            return this.response.getHeaders(name);
+        }
+
+        @Nullable
+        @Override
+        public Header getFirstHeader(String name) {
+            return this.response.getFirstHeader(name);
+        }
+
+        @Nullable
+        @Override
+        public Header getLastHeader(String name) {
+            return this.response.getLastHeader(name);
+        }
+
+        @Override
+        public Header[] getAllHeaders() {
+            return this.response.getAllHeaders();
+        }
+
+        @Override
+        public void addHeader(Header header) {
+            this.response.addHeader(header);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            this.response.addHeader(name, value);
+        }
+
+        @Override
+        public void setHeader(Header header) {
+            this.response.setHeader(header);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            this.response.setHeader(name, value);
+        }
+
+        @Override
+        public void setHeaders(Header[] headers) {
+            this.response.setHeaders(headers);
+        }
+
+        @Override
+        public void removeHeader(Header header) {
+            this.response.removeHeader(header);
+        }
+
+        @Override
+        public void removeHeaders(String name) {
+            this.response.removeHeaders(name);
+        }
+
+        @Override
+        public HeaderIterator headerIterator() {
+            return this.response.headerIterator();
+        }
+
+        @Override
+        public HeaderIterator headerIterator(String name) {
+            return this.response.headerIterator(name);
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            return this.response.getParams();
+        }
+
+        @Override
+        @Deprecated
+        public void setParams(HttpParams params) {
+            this.response.setParams(params);
+        }
+    }
+
+    private final class ThrottledEntity extends HttpEntityWrapper {
+        private ThrottledEntity(HttpEntity wrappedEntity) {
+            super(wrappedEntity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    var result = super.read();
+                    if (result >= 0) {
+                        DownloadScheduler.this.consume(1);
+                    }
+                    return result;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    var result = super.read(b, off, len);
+                    if (result > 0) {
+                        DownloadScheduler.this.consume(result);
+                    }
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            try (var stream = this.getContent()) {
+                var buffer = new byte[BUFFER_SIZE];
+                for (var n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                    outStream.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+}
@@ -1,62 +1,53 @@
 package org.teacon.slides.cache;
 
-import com.google.common.hash.Hashing;
-import org.apache.http.entity.ContentType;
-
-import javax.annotation.Nullable;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import com.google.common.hash.HashCode;
+
 import java.net.URI;
 import java.nio.file.Path;
 import java.text.Normalizer;
-import java.util.Collections;
-import java.util.Locale;
+import java.util.Optional;
 
 public final class FilenameAllocation {
+    /**
+     * The count of leading bytes which is enough for sniffing the image format.
+     */
+    public static final int MAGIC_LENGTH = 64;
+
+    private static final int SHA1_HEX_LENGTH = 40;
+
     private FilenameAllocation() {
         throw new UnsupportedOperationException();
     }
 
-    public static String decideImageExtension(String oldName, byte[] bytes, @Nullable ContentType type) {
-        try (var stream = new ByteArrayInputStream(bytes)) {
-            try (var imageStream = ImageIO.createImageInputStream(stream)) {
-                var readers = Collections.<ImageReader>emptyIterator();
-                if (type != null) {
-                    readers = ImageIO.getImageReadersByMIMEType(type.getMimeType());
-                }
-                if (!readers.hasNext()) {
-                    readers = ImageIO.getImageReaders(imageStream);
-                }
-                if (readers.hasNext()) {
-                    var suffixes = readers.next().getOriginatingProvider().getFileSuffixes();
-                    if (suffixes.length > 0) {
-                        var extension = suffixes[0];
-                        var oldDotIndex = oldName.lastIndexOf('.');
-                        var oldCutIndex = oldDotIndex < 0 ? oldName.length() : oldDotIndex;
-                        if (extension.isEmpty()) {
-                            return oldName.substring(0, oldCutIndex);
-                        }
-                        return oldName.substring(0, oldCutIndex) + '.' + extension.toLowerCase(Locale.ROOT);
-                    }
-                }
-            }
-            return oldName;
-        } catch (IOException e) {
+    public static String decideImageExtension(String oldName, ImageFormat format) {
+        if (format == ImageFormat.UNKNOWN) {
             return oldName;
         }
+        var oldDotIndex = oldName.lastIndexOf('.');
+        var oldCutIndex = oldDotIndex < 0 ? oldName.length() : oldDotIndex;
+        return oldName.substring(0, oldCutIndex) + '.' + format.getExtension();
     }
 
-    public static String allocateHttpRespName(URI location, byte[] bytes, @Nullable ContentType type) {
+    public static String allocateHttpRespName(URI location, ImageFormat format) {
         // TODO: content disposition
         var filename = Path.of(location.getPath()).getFileName().toString();
-        return decideImageExtension(Normalizer.normalize(filename, Normalizer.Form.NFC), bytes, type);
+        return decideImageExtension(Normalizer.normalize(filename, Normalizer.Form.NFC), format);
     }
 
-    public static String allocateSha1HashName(byte[] bytes, @Nullable ContentType type) {
-        @SuppressWarnings("deprecation") var hashFunction = Hashing.sha1();
-        var hashString = hashFunction.hashBytes(bytes).toString();
-        return decideImageExtension(hashString, bytes, type);
+    public static String allocateSha1HashName(HashCode sha1, ImageFormat format) {
+        return decideImageExtension(sha1.toString(), format);
+    }
+
+    public static Optional<HashCode> parseSha1HashName(String name) {
+        var dotIndex = name.indexOf('.');
+        var hex = dotIndex < 0 ? name : name.substring(0, dotIndex);
+        if (hex.length() != SHA1_HEX_LENGTH) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(HashCode.fromString(hex));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
     }
 }
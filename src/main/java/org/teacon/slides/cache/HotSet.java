@@ -0,0 +1,105 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The most recently used urls of one server, with the last access time of each url. The hot set of
+ * the previous session is used for warming up the cache before the player reaches the slides.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class HotSet {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+
+    private static final String DIRECTORY = "hot-sets";
+
+    private final String server;
+    private final Path filePath;
+    private final Path tempPath;
+    private final Map<String, Long> lastAccess = new ConcurrentHashMap<>();
+
+    private HotSet(String server, Path filePath, Path tempPath) {
+        this.server = server;
+        this.filePath = filePath;
+        this.tempPath = tempPath;
+    }
+
+    static HotSet load(Path parentPath, Path tempPath, String server) throws IOException {
+        @SuppressWarnings("deprecation") var hash = Hashing.sha1().hashString(server, StandardCharsets.UTF_8);
+        var directory = Files.createDirectories(parentPath.resolve(DIRECTORY));
+        var result = new HotSet(server, directory.resolve(hash + ".json"), tempPath);
+        if (Files.isRegularFile(result.filePath)) {
+            try (var reader = Files.newBufferedReader(result.filePath, StandardCharsets.UTF_8)) {
+                var root = GSON.fromJson(reader, JsonObject.class);
+                var entries = root.getAsJsonObject("entries");
+                for (var entry : entries.entrySet()) {
+                    result.lastAccess.put(entry.getKey(), entry.getValue().getAsLong());
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn(MARKER, "Skipped malformed hot set {} of {}. ", result.filePath, server, e);
+            }
+        }
+        return result;
+    }
+
+    public String getServer() {
+        return this.server;
+    }
+
+    public void touch(String url) {
+        this.lastAccess.put(url, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the most recently used urls, the most recent one first
+     */
+    public List<String> getHottest(int limit) {
+        return this.lastAccess.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(limit).map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * Saves the most recently used urls, and the others are forgotten.
+     */
+    public void save(int limit) throws IOException {
+        var entries = new JsonObject();
+        for (var url : this.getHottest(limit)) {
+            entries.addProperty(url, this.lastAccess.getOrDefault(url, 0L));
+        }
+        var root = new JsonObject();
+        root.addProperty("server", this.server);
+        root.add("entries", entries);
+        var tmp = Files.createTempFile(this.tempPath, "hot-set-", ".tmp");
+        try {
+            Files.writeString(tmp, GSON.toJson(root), StandardCharsets.UTF_8);
+            Files.move(tmp, this.filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking I/O of the slide show on virtual threads, so that slow image hosts never occupy
+ * the worker threads shared with chunk building and world generation. At most a fixed count of
+ * tasks run at the same time, and the others wait (cheaply, as parked virtual threads) in the queue.
+ * Cancelling a returned future interrupts its task, and a task cancelled in the queue never starts.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class IOExecutor implements Executor {
+
+    private final ThreadFactory threadFactory;
+    private final Semaphore permits;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder active = new LongAdder();
+
+    private volatile ExecutorService executor;
+
+    public IOExecutor(String name, int maxConcurrency) {
+        this.threadFactory = Thread.ofVirtual().name(name + "-", 0).factory();
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.executor = Executors.newThreadPerTaskExecutor(this.threadFactory);
+    }
+
+    public <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        return this.supply(supplier, result -> {});
+    }
+
+    /**
+     * @param discard called with the result if the returned future has been cancelled before the task finishes
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> supplier, Consumer<? super T> discard) {
+        var future = new CompletableFuture<T>();
+        this.queued.increment();
+        try {
+            this.executor.execute(() -> {
+                var thread = Thread.currentThread();
+                future.whenComplete((result, throwable) -> {
+                    if (future.isCancelled()) {
+                        thread.interrupt();
+                    }
+                });
+                try {
+                    this.permits.acquire();
+                } catch (InterruptedException e) {
+                    this.queued.decrement();
+                    future.completeExceptionally(new CancellationException("Cancelled before start"));
+                    return;
+                }
+                this.queued.decrement();
+                if (future.isDone()) {
+                    this.permits.release();
+                    return;
+                }
+                this.active.increment();
+                try {
+                    var result = supplier.get();
+                    if (!future.complete(result)) {
+                        discard.accept(result);
+                    }
+                } catch (CompletionException e) {
+                    future.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    this.active.decrement();
+                    this.permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.queued.decrement();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        this.supply(() -> {
+            command.run();
+            return null;
+        });
+    }
+
+    public long getQueuedCount() {
+        return this.queued.sum();
+    }
+
+    public long getActiveCount() {
+        return this.active.sum();
+    }
+
+    /**
+     * Interrupts all the running and queued tasks. Tasks submitted later run on a fresh set of virtual
+     * threads, so the executor could be reused after shutting down (e.g. when joining another server).
+     */
+    public void shutdown() {
+        var previous = this.executor;
+        this.executor = Executors.newThreadPerTaskExecutor(this.threadFactory);
+        previous.shutdownNow();
+    }
+}
@@ -0,0 +1,71 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.ByteBuffer;
+
+/**
+ * The compressed image data fetched for one consumer, which must be closed as soon as the consumer has
+ * finished reading the buffer (e.g. after the image is decoded), so that the temporary file behind the
+ * buffer could be released. The buffer must not be read after the bytes are closed.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class ImageBytes implements AutoCloseable {
+
+    private final String name;
+    private final ByteBuffer buffer;
+    private final ImageFormat format;
+    private final @Nullable HashCode contentHash;
+    private final @Nullable ResourceLease lease;
+
+    /**
+     * @param name        the recommended file name of the image
+     * @param buffer      the compressed image data (usually mapped from the cache file)
+     * @param format      the format sniffed from the image data when it was fetched
+     * @param contentHash the SHA-1 of the image data, or null if it is unknown (e.g. the data is too large)
+     * @param lease       the reference to the temporary file behind the buffer, or null if there is none
+     */
+    ImageBytes(String name, ByteBuffer buffer, ImageFormat format,
+               @Nullable HashCode contentHash, @Nullable ResourceLease lease) {
+        this.name = name;
+        this.buffer = buffer;
+        this.format = format;
+        this.contentHash = contentHash;
+        this.lease = lease;
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    public ByteBuffer buffer() {
+        return this.buffer;
+    }
+
+    public ImageFormat format() {
+        return this.format;
+    }
+
+    @Nullable
+    public HashCode contentHash() {
+        return this.contentHash;
+    }
+
+    @Override
+    public void close() {
+        if (this.lease != null) {
+            this.lease.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ImageBytes[name=" + this.name + ", format=" + this.format + ", size=" + this.buffer.remaining() + "]";
+    }
+}
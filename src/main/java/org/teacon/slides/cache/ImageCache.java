@@ -1,38 +1,53 @@
 package org.teacon.slides.cache;
 
+import com.google.common.hash.HashCode;
 import com.google.common.net.HttpHeaders;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
-import net.minecraft.Util;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.cache.CacheConfig;
-import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 import org.teacon.content_disposition.ContentDisposition;
+import org.teacon.slides.texture.TextureProvider;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.imageio.ImageIO;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
@@ -43,10 +58,35 @@ public final class ImageCache {
     private static final Marker MARKER = MarkerManager.getMarker("Cache");
 
     private static final Path LOCAL_CACHE_PATH = Paths.get("slideshow");
+    private static final Path LOCAL_BUNDLE_PATH = LOCAL_CACHE_PATH.resolve("bundles");
+    private static final Path RELAY_CACHE_PATH = Paths.get("slideshow-relay");
+    private static final String BUNDLE_EXTENSION = ".bundle";
 
     private static volatile @Nullable ImageCache sInstance;
+    private static volatile @Nullable ImageCache sRelayInstance;
 
     private static final int MAX_CACHE_OBJECT_SIZE = 1 << 29; // 512 MiB
+    private static final long MAX_STORAGE_BYTES = Long.getLong("slideshow.cache.maxBytes", 1L << 32); // 4 GiB
+    private static final int MAX_STORAGE_ENTRIES = Integer.getInteger("slideshow.cache.maxEntries", 1 << 16);
+    private static final int MAX_CONCURRENT_DOWNLOADS = Integer.getInteger("slideshow.io.maxDownloads", 64);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("slideshow.http.maxConnections", 16);
+    private static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger("slideshow.http.maxConnectionsPerHost", 4);
+    private static final long MAX_BYTES_PER_SECOND = Long.getLong("slideshow.http.maxBytesPerSecond", 0L); // unlimited
+    private static final int MAX_IMAGE_DIMENSION =
+            Integer.getInteger("slideshow.image.maxDimension", TextureProvider.MAX_TEXTURE_SIZE);
+    private static final long MAX_CONTENT_LENGTH =
+            Long.getLong("slideshow.http.maxContentLength", MAX_CACHE_OBJECT_SIZE);
+    private static final long MIN_RESUMABLE_LENGTH =
+            Long.getLong("slideshow.http.minResumableBytes", 1L << 20); // 1 MiB
+    private static final long REJECTION_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("slideshow.cache.rejectionSeconds", 3600L)); // 1 hour
+    // zero or negative for disabling the periodic garbage collection
+    private static final long GC_INTERVAL_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("slideshow.cache.gcIntervalSeconds", 600L)); // 10 min
+    private static final long GC_STALE_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("slideshow.cache.gcStaleSeconds", 86400L)); // 1 day
+    // "apache" for the blocking connection pool, or "java" for the http/2 capable java http client
+    private static final String HTTP_BACKEND = System.getProperty("slideshow.http.backend", "apache");
     private static final CacheConfig CONFIG =
             CacheConfig.custom().setMaxObjectSize(MAX_CACHE_OBJECT_SIZE).setSharedCache(false).build();
 
@@ -57,6 +97,21 @@ public final class ImageCache {
 
     private final CloseableHttpClient mHttpClient;
     private final CacheStorage mCacheStorage;
+    private final CacheResourceFactory mResourceFactory;
+    private final ResumableDownloads mResumable;
+    private volatile @Nullable ImageRelay mRelay;
+
+    // downloads are interrupted on logout, while storage maintenance outlives the connection
+    private final IOExecutor mDownloadExecutor;
+    private final IOExecutor mStorageExecutor;
+    private final DownloadScheduler mScheduler;
+    private final PixelCache mPixelCache;
+
+    private final ConcurrentHashMap<Map.Entry<URI, Boolean>, InFlight> mInFlight;
+    private final CacheMetrics mMetrics = new CacheMetrics();
+
+    // negative verdicts of rejected resources, so that they are not downloaded again and again
+    private final ConcurrentHashMap<URI, Rejection> mRejections = new ConcurrentHashMap<>();
 
     public static ImageCache getInstance() {
         var result = sInstance;
@@ -71,21 +126,386 @@ public final class ImageCache {
         return result;
     }
 
+    /**
+     * Unlike {@link #getInstance()}, never creates the cache, which is cheap enough for every frame.
+     *
+     * @return the cache, or null if it has not been created yet
+     */
+    @Nullable
+    public static ImageCache getInstanceIfCreated() {
+        return sInstance;
+    }
+
+    /**
+     * The cache which the server relays images from, which shares nothing with the cache of the client
+     * (e.g. when the server runs in the same game), so that it never depends on any client state.
+     */
+    public static ImageCache getRelayInstance() {
+        var result = sRelayInstance;
+        if (result == null) {
+            synchronized (ImageCache.class) {
+                result = sRelayInstance;
+                if (result == null) {
+                    sRelayInstance = (result = new ImageCache(RELAY_CACHE_PATH));
+                }
+            }
+        }
+        return result;
+    }
+
     private ImageCache(Path dir) {
+        mDownloadExecutor = new IOExecutor("SlideShow-Download", MAX_CONCURRENT_DOWNLOADS);
+        mStorageExecutor = new IOExecutor("SlideShow-Storage", 1);
+        mScheduler = new DownloadScheduler(MAX_CONNECTIONS, MAX_CONNECTIONS_PER_HOST, MAX_BYTES_PER_SECOND);
         try {
             Files.createDirectories(dir);
+            mCacheStorage = new CacheStorage(dir, MAX_STORAGE_BYTES, MAX_STORAGE_ENTRIES, mStorageExecutor);
+            mPixelCache = mCacheStorage.getPixelCache();
+            mResourceFactory = mCacheStorage.createResourceFactory();
+            mResumable = new ResumableDownloads(Files.createDirectories(dir.resolve("partial")), MIN_RESUMABLE_LENGTH);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create cache directory for slide images.", e);
         }
-        mCacheStorage = new CacheStorage(dir);
-        mHttpClient = CachingHttpClients.custom().setCacheConfig(CONFIG).setHttpCacheStorage(mCacheStorage).build();
+        ImageProbe probe = new ImageProbe(MAX_IMAGE_DIMENSION, MAX_CONTENT_LENGTH);
+        RelayTransport relay = new RelayTransport(() -> mRelay);
+        mHttpClient = createHttpClientBuilder(mScheduler, probe, mResumable, relay).setCacheConfig(CONFIG)
+                .setHttpCacheStorage(mCacheStorage).setResourceFactory(mResourceFactory).build();
+        mInFlight = new ConcurrentHashMap<>();
+        this.scheduleGarbageCollection();
+    }
+
+    /**
+     * Garbage collection runs on the storage executor, which runs one task at a time, so that it never
+     * competes with downloads for more than a single virtual thread.
+     */
+    private void scheduleGarbageCollection() {
+        if (GC_INTERVAL_MILLIS > 0) {
+            Executor delayed =
+                    CompletableFuture.delayedExecutor(GC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, mStorageExecutor);
+            CompletableFuture.runAsync(this::collectGarbage, delayed)
+                    .whenComplete((v, t) -> scheduleGarbageCollection());
+        }
+    }
+
+    private void collectGarbage() {
+        long startNanos = System.nanoTime();
+        long staleBefore = System.currentTimeMillis() - GC_STALE_MILLIS;
+        long reclaimedBytes = 0L;
+        try {
+            reclaimedBytes += mCacheStorage.collectGarbage(staleBefore);
+            reclaimedBytes += mResumable.collectGarbage(staleBefore);
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to collect garbage from cache storage.", e);
+        }
+        mMetrics.recordCollection(reclaimedBytes);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (reclaimedBytes > 0) {
+            LOGGER.info(MARKER, "Reclaimed {} bytes from cache storage in {} ms.", reclaimedBytes, elapsedMillis);
+        } else {
+            LOGGER.debug(MARKER, "Reclaimed nothing from cache storage in {} ms.", elapsedMillis);
+        }
     }
 
     @Nonnull
-    public CompletableFuture<Map.Entry<String, byte[]>> getResource(@Nonnull URI location, boolean online) {
-        return CompletableFuture.supplyAsync(() -> {
+    private static CachingHttpClientBuilder createHttpClientBuilder(
+            DownloadScheduler scheduler, ImageProbe probe, ResumableDownloads resumable, RelayTransport relay) {
+        return switch (HTTP_BACKEND) {
+            case "java" -> new JavaHttpClientBuilder(scheduler, probe, resumable, relay);
+            case "apache" -> new ScheduledHttpClientBuilder(scheduler, probe, resumable, relay);
+            default -> {
+                LOGGER.warn(MARKER, "Unknown http backend {}, falling back to apache http client.", HTTP_BACKEND);
+                yield new ScheduledHttpClientBuilder(scheduler, probe, resumable, relay);
+            }
+        };
+    }
+
+    /**
+     * The returned bytes belong to the caller, which must close them after use. Cancelling the returned
+     * future aborts the download if no other caller is waiting for the same resource.
+     */
+    @Nonnull
+    public CompletableFuture<ImageBytes> getResource(@Nonnull URI location, boolean online) {
+        CompletableFuture<Fetched> request = request(location, online);
+        CompletableFuture<ImageBytes> result = new CompletableFuture<>();
+        request.whenComplete((fetched, throwable) -> complete(result,
+                fetched == null ? null : fetched.toBytes(), throwable, ImageBytes::close));
+        result.whenComplete((bytes, throwable) -> {
+            if (result.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Loads the resource in the stale-while-revalidate way. The cached resource, if any, is passed to the
+     * stale consumer immediately, while the resource is revalidated with the remote server in the background.
+     * The returned future completes after the stale consumer finishes. Both the bytes passed to the stale
+     * consumer and the changed bytes returned belong to the caller, which must close them after use.
+     * Cancelling the returned future aborts the revalidation if no other caller is waiting for it.
+     *
+     * @param location the location of the resource
+     * @param stale    the consumer of the cached resource, or null if the caller has its own current resource
+     * @return empty if the resource is unchanged (or the caller's own current resource is still valid),
+     * otherwise the changed resource
+     */
+    @Nonnull
+    public CompletableFuture<Optional<ImageBytes>> revalidate(
+            @Nonnull URI location, @Nullable Function<ImageBytes, ? extends CompletionStage<?>> stale) {
+        mMetrics.recordRevalidation();
+        CompletableFuture<Optional<ImageBytes>> result = new CompletableFuture<>();
+        CompletableFuture<Fetched> cachedRequest = stale == null ? null : request(location, false);
+        AtomicReference<CompletableFuture<Fetched>> onlineRequest = new AtomicReference<>();
+        CompletableFuture<Optional<Fetched>> cached = cachedRequest == null
+                ? CompletableFuture.completedFuture(Optional.empty())
+                : cachedRequest.handle((fetched, throwable) -> Optional.ofNullable(fetched));
+        CompletableFuture<Void> staleConsumed = cached.thenCompose(cachedOptional -> cachedOptional
+                .<CompletionStage<Void>>map(fetched -> {
+                    if (result.isCancelled()) {
+                        fetched.release();
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return stale.apply(fetched.toBytes()).handle((v, t) -> (Void) null);
+                })
+                .orElseGet(() -> CompletableFuture.completedFuture(null)));
+        CompletableFuture<Optional<Fetched>> revalidated = cached.thenCompose(cachedOptional -> {
+            CompletableFuture<Fetched> request = request(location, true);
+            onlineRequest.set(request);
+            if (result.isCancelled()) {
+                request.cancel(false);
+            }
+            return request.thenApply(fetched -> {
+                // there is nothing to compare if the caller asked for the cached resource but there is none
+                boolean hasBaseline = stale == null || cachedOptional.isPresent();
+                if (hasBaseline) {
+                    CacheResponseStatus status = fetched.status();
+                    if (status == CacheResponseStatus.CACHE_HIT || status == CacheResponseStatus.VALIDATED) {
+                        fetched.release();
+                        return Optional.empty();
+                    }
+                    if (cachedOptional.isPresent() && cachedOptional.get().buffer().equals(fetched.buffer())) {
+                        fetched.release();
+                        return Optional.empty();
+                    }
+                }
+                return Optional.of(fetched);
+            });
+        });
+        staleConsumed.thenCompose(v -> revalidated).whenComplete((fetchedOptional, throwable) -> complete(result,
+                fetchedOptional == null ? null : fetchedOptional.map(Fetched::toBytes), throwable,
+                bytesOptional -> bytesOptional.ifPresent(ImageBytes::close)));
+        result.whenComplete((bytesOptional, throwable) -> {
+            if (result.isCancelled()) {
+                if (cachedRequest != null) {
+                    cachedRequest.cancel(false);
+                }
+                CompletableFuture<Fetched> request = onlineRequest.get();
+                if (request != null) {
+                    request.cancel(false);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Completes the future with the given value, or discards the value if the future has been cancelled.
+     */
+    private static <T> void complete(CompletableFuture<T> future, @Nullable T value,
+                                     @Nullable Throwable throwable, Consumer<? super T> discard) {
+        if (throwable != null) {
+            future.completeExceptionally(throwable);
+        } else if (!future.complete(value)) {
+            discard.accept(value);
+        }
+    }
+
+    /**
+     * Concurrent requests of the same location and mode share one in-flight request. Every caller
+     * gets its own duplicate of the buffer, so that they will not interfere with each other, and its
+     * own reference to the temporary file behind the buffer, which should be released by the caller.
+     * <p>
+     * Every caller could cancel its own future, and the in-flight request is aborted as soon as all
+     * the callers have cancelled their futures. A cancelled request never caches any partial body.
+     */
+    @Nonnull
+    private CompletableFuture<Fetched> request(@Nonnull URI location, boolean online) {
+        long startNanos = System.nanoTime();
+        Rejection rejection = mRejections.get(location);
+        if (rejection != null) {
+            if (rejection.expiresAt() > System.currentTimeMillis()) {
+                mMetrics.recordRequest(CacheMetrics.Source.FAILURE, System.nanoTime() - startNanos);
+                return CompletableFuture.failedFuture(new ImageProbe.RejectedException(rejection.reason()));
+            }
+            mRejections.remove(location, rejection);
+        }
+        Map.Entry<URI, Boolean> key = Map.entry(location, online);
+        CompletableFuture<Fetched> caller = new CompletableFuture<>();
+        InFlight created = new InFlight();
+        InFlight inFlight = mInFlight.compute(key,
+                (k, existing) -> (existing == null ? created : existing).join(caller));
+        caller.whenComplete((fetched, throwable) -> {
+            if (caller.isCancelled() && mInFlight.computeIfPresent(key,
+                    (k, v) -> v == inFlight && v.isAbandoned() ? null : v) == null) {
+                // nobody is waiting for the in-flight request any longer
+                CompletableFuture<Fetched> fetch = inFlight.fetch;
+                if (fetch != null) {
+                    fetch.cancel(false);
+                }
+            }
+        });
+        if (inFlight != created) {
+            caller.whenComplete((fetched, throwable) -> mMetrics.recordRequest(throwable == null
+                    ? CacheMetrics.Source.MEMORY : CacheMetrics.Source.FAILURE, System.nanoTime() - startNanos));
+            return caller;
+        }
+        CompletableFuture<Fetched> fetch = fetchResource(location, online);
+        created.fetch = fetch;
+        if (created.isAbandoned()) {
+            fetch.cancel(false);
+        }
+        fetch.whenComplete((fetched, throwable) -> {
+            mInFlight.remove(key, created);
+            if (throwable instanceof ImageProbe.RejectedException rejected) {
+                long expiresAt = System.currentTimeMillis() + REJECTION_MILLIS;
+                mRejections.put(location, new Rejection(rejected.getMessage(), expiresAt));
+            }
+            mMetrics.recordRequest(toSource(fetched, throwable), System.nanoTime() - startNanos);
+            if (throwable != null) {
+                created.callers.forEach(c -> c.completeExceptionally(throwable));
+            } else {
+                // nobody could join after the removal, and the fetched one has held the first reference
+                fetched.retain(created.callers.size() - 1);
+                for (CompletableFuture<Fetched> c : created.callers) {
+                    if (!c.complete(fetched.duplicate())) {
+                        fetched.release();
+                    }
+                }
+            }
+        });
+        return caller;
+    }
+
+    @Nonnull
+    private static CacheMetrics.Source toSource(@Nullable Fetched fetched, @Nullable Throwable throwable) {
+        if (throwable != null || fetched == null) {
+            return CacheMetrics.Source.FAILURE;
+        }
+        CacheResponseStatus status = fetched.status();
+        if (status == CacheResponseStatus.VALIDATED) {
+            return CacheMetrics.Source.VALIDATED;
+        }
+        // a response without status is neither generated nor served by the caching layer
+        return status == CacheResponseStatus.CACHE_MISS || status == null
+                ? CacheMetrics.Source.NETWORK : CacheMetrics.Source.DISK;
+    }
+
+    public long getQueuedDownloadCount() {
+        return mDownloadExecutor.getQueuedCount();
+    }
+
+    public long getActiveDownloadCount() {
+        return mDownloadExecutor.getActiveCount();
+    }
+
+    /**
+     * Interrupts all the downloads, which are either running or queued. The pending requests
+     * complete exceptionally, and the later requests start on a fresh set of virtual threads.
+     */
+    public void cancelDownloads() {
+        mDownloadExecutor.shutdown();
+    }
+
+    /**
+     * Sets the relay which online requests are sent to before their origins, or null to disable relaying.
+     */
+    public void setRelay(@Nullable ImageRelay relay) {
+        mRelay = relay;
+    }
+
+    public PixelCache getPixelCache() {
+        return mPixelCache;
+    }
+
+    /**
+     * Loads the hot set of the given server, which is empty if it has never been saved.
+     *
+     * @param server the address of the server (or the name of the single player world)
+     */
+    @Nonnull
+    public HotSet loadHotSet(@Nonnull String server) throws IOException {
+        return HotSet.load(LOCAL_CACHE_PATH, mCacheStorage.getTempPath(), server);
+    }
+
+    /**
+     * Writes all the cached resources into a bundle, which could be imported by other clients.
+     *
+     * @param name the name of the bundle, which is saved under the bundle directory
+     * @return the count of cached resources written
+     */
+    @Nonnull
+    public CompletableFuture<Integer> exportBundle(@Nonnull String name) {
+        return mStorageExecutor.supply(() -> {
+            try {
+                Files.createDirectories(LOCAL_BUNDLE_PATH);
+                return mCacheStorage.exportBundle(LOCAL_BUNDLE_PATH.resolve(name + BUNDLE_EXTENSION));
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to export cache bundle {}.", name, e);
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Reads cached resources from a bundle, which is usually distributed before an event.
+     *
+     * @param name the name of the bundle, which is saved under the bundle directory
+     * @return the count of cached resources imported
+     */
+    @Nonnull
+    public CompletableFuture<Integer> importBundle(@Nonnull String name) {
+        return mStorageExecutor.supply(() -> {
+            try {
+                return mCacheStorage.importBundle(LOCAL_BUNDLE_PATH.resolve(name + BUNDLE_EXTENSION));
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to import cache bundle {}.", name, e);
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public long getQueuedConnectionCount() {
+        return mScheduler.getQueuedCount();
+    }
+
+    public long getActiveConnectionCount() {
+        return mScheduler.getActiveCount();
+    }
+
+    public long getReceivedBytes() {
+        return mScheduler.getReceivedBytes();
+    }
+
+    public long getThrottledMillis() {
+        return mScheduler.getThrottledMillis();
+    }
+
+    public CacheMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Nonnull
+    private CompletableFuture<Fetched> fetchResource(@Nonnull URI location, boolean online) {
+        final HttpGet request = createRequest(location, online);
+        final CompletableFuture<Fetched> result = mDownloadExecutor.supply(() -> {
             final HttpCacheContext context = HttpCacheContext.create();
-            try (CloseableHttpResponse response = createResponse(location, context, online)) {
+            // temporary files created during the request are released when the request finishes,
+            // except the one behind the buffer, which is retained until the consumers release it
+            try (CacheResourceFactory.Scope scope = mResourceFactory.openScope();
+                 CloseableHttpResponse response = mHttpClient.execute(request, context)) {
+                if (LOGGER.isDebugEnabled(MARKER)) {
+                    logRequestHeader(context);
+                }
                 try {
                     Optional<ContentDisposition> dispositionOptional;
                     try {
@@ -96,26 +516,75 @@ public final class ImageCache {
                         dispositionOptional = Optional.empty();
                     }
                     ContentType type = ContentType.getLenient(response.getEntity());
-                    byte[] bytes = IOUtils.toByteArray(response.getEntity().getContent());
-                    return Map.entry(dispositionOptional.flatMap(ContentDisposition::getFilename)
-                            .orElseGet(() -> FilenameAllocation.allocateHttpRespName(location, bytes, type)), bytes);
+                    ByteBuffer buffer;
+                    HashCode contentHash = null;
+                    TempFileResource resource = null;
+                    try (InputStream stream = response.getEntity().getContent()) {
+                        if (stream instanceof ContentFileResource.Stream contentStream) {
+                            contentHash = contentStream.getContentHash();
+                        }
+                        buffer = toByteBuffer(stream);
+                        if (stream instanceof TempFileResource.Stream tempStream) {
+                            // hashed while being received, so that even the first decode fills the pixel cache
+                            resource = tempStream.getResource();
+                            contentHash = resource.getContentHash();
+                            resource.retain(1);
+                        }
+                    }
+                    // the only place where the format is sniffed, and it is carried along with the bytes
+                    ImageFormat format = ImageFormat.detect(buffer, type == null ? null : type.getMimeType());
+                    return new Fetched(dispositionOptional.flatMap(ContentDisposition::getFilename)
+                            .orElseGet(() -> FilenameAllocation.allocateHttpRespName(location, format)),
+                            buffer, format, contentHash, context.getCacheResponseStatus(), resource);
+                } catch (ImageProbe.RejectedException e) {
+                    throw e;
                 } catch (IOException e) {
-                    if (online) {
+                    if (online && !request.isAborted()) {
                         LOGGER.warn(MARKER, "Failed to read bytes from remote source.", e);
                     }
                     throw new CompletionException(e);
                 }
+            } catch (ImageProbe.RejectedException rejected) {
+                LOGGER.warn(MARKER, "Rejected resource from {}: {}", location, rejected.getMessage());
+                throw new CompletionException(rejected);
             } catch (ClientProtocolException protocolError) {
                 LOGGER.warn(MARKER, "Detected invalid client protocol.", protocolError);
                 throw new CompletionException(protocolError);
             } catch (IOException connError) {
-                LOGGER.warn(MARKER, "Failed to establish connection.", connError);
+                if (!request.isAborted()) {
+                    LOGGER.warn(MARKER, "Failed to establish connection.", connError);
+                }
                 throw new CompletionException(connError);
             }
-        }, Util.backgroundExecutor());
+        }, Fetched::release);
+        // an aborted request closes its connection, so the body is neither cached nor read any further
+        result.whenComplete((fetched, throwable) -> {
+            if (result.isCancelled()) {
+                request.abort();
+            }
+        });
+        return result;
     }
 
-    private CloseableHttpResponse createResponse(URI location, HttpCacheContext context, boolean online) throws IOException {
+    /**
+     * Cached bodies are backed by files, which are mapped into memory directly without any copy.
+     * Other bodies (e.g. compressed or too large to be cached) are copied into a direct buffer.
+     *
+     * @param stream the content of the response entity
+     * @return a read-only direct buffer
+     */
+    @Nonnull
+    private static ByteBuffer toByteBuffer(@Nonnull InputStream stream) throws IOException {
+        if (stream instanceof FileInputStream fileStream) {
+            FileChannel channel = fileStream.getChannel();
+            long position = channel.position();
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+        }
+        byte[] bytes = IOUtils.toByteArray(stream);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    private static HttpGet createRequest(URI location, boolean online) {
         HttpGet request = new HttpGet(location);
 
         request.addHeader(HttpHeaders.REFERER, DEFAULT_REFERER);
@@ -129,22 +598,66 @@ public final class ImageCache {
             request.addHeader(HttpHeaders.CACHE_CONTROL, "must-revalidate");
         }
 
-        return mHttpClient.execute(request, context);
+        return request;
     }
 
     private void logRequestHeader(@Nonnull HttpCacheContext context) {
-        LOGGER.debug(MARKER, " >> {}", context.getRequest().getRequestLine());
-        for (Header header : context.getRequest().getAllHeaders()) {
-            LOGGER.debug(MARKER, " >> {}", header);
+        if (context.getRequest() != null) {
+            LOGGER.debug(MARKER, " >> {}", context.getRequest().getRequestLine());
+            for (Header header : context.getRequest().getAllHeaders()) {
+                LOGGER.debug(MARKER, " >> {}", header);
+            }
         }
-        LOGGER.debug(MARKER, " << {}", context.getResponse().getStatusLine());
-        for (Header header : context.getResponse().getAllHeaders()) {
-            LOGGER.debug(MARKER, " << {}", header);
+        if (context.getResponse() != null) {
+            LOGGER.debug(MARKER, " << {}", context.getResponse().getStatusLine());
+            for (Header header : context.getResponse().getAllHeaders()) {
+                LOGGER.debug(MARKER, " << {}", header);
+            }
         }
         LOGGER.debug(MARKER, "Remote server status: {}", context.getCacheResponseStatus());
     }
 
-    public int cleanResources() {
-        return mCacheStorage.cleanResources();
+    private record Rejection(String reason, long expiresAt) {
+    }
+
+    private static final class InFlight {
+        private final List<CompletableFuture<Fetched>> callers = new CopyOnWriteArrayList<>();
+        private volatile @Nullable CompletableFuture<Fetched> fetch;
+
+        private InFlight join(CompletableFuture<Fetched> caller) {
+            callers.add(caller);
+            return this;
+        }
+
+        private boolean isAbandoned() {
+            return callers.stream().allMatch(CompletableFuture::isCancelled);
+        }
+    }
+
+    /**
+     * @param resource the temporary file behind the buffer, or null if the buffer is not backed by one
+     */
+    private record Fetched(String name, ByteBuffer buffer, ImageFormat format, @Nullable HashCode contentHash,
+                           @Nullable CacheResponseStatus status, @Nullable TempFileResource resource) {
+        private Fetched duplicate() {
+            return new Fetched(name, buffer.duplicate(), format, contentHash, status, resource);
+        }
+
+        private void retain(int count) {
+            if (resource != null && count > 0) {
+                resource.retain(count);
+            }
+        }
+
+        private void release() {
+            if (resource != null) {
+                resource.release();
+            }
+        }
+
+        private ImageBytes toBytes() {
+            ResourceLease lease = resource == null ? null : new ResourceLease(resource);
+            return new ImageBytes(name, buffer, format, contentHash, lease);
+        }
     }
 }
@@ -0,0 +1,128 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Image formats recognized by their leading bytes. The format is sniffed once when the resource is
+ * fetched and carried along with the bytes, so that later stages never need to sniff it again.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public enum ImageFormat {
+    PNG("png", "image/png", sig("\u0089PNG\r\n\u001A\n")),
+    // an animated png is a png which has an animation control chunk before the first image data chunk
+    APNG("png", "image/apng"),
+    JPEG("jpg", "image/jpeg", sig("\u00FF\u00D8\u00FF")),
+    GIF("gif", "image/gif", sig("GIF87a"), sig("GIF89a")),
+    WEBP("webp", "image/webp", sig("RIFF????WEBPVP8")),
+    BMP("bmp", "image/bmp", sig("BM")),
+    AVIF("avif", "image/avif", sig("????ftypavif"), sig("????ftypavis")),
+    UNKNOWN("", "application/octet-stream");
+
+    private static final int ANY = -1;
+    private static final ImageFormat[] VALUES = values();
+
+    private static final int PNG_SIGNATURE_LENGTH = 8;
+    private static final int PNG_ACTL = 0x6163544C; // acTL
+    private static final int PNG_IDAT = 0x49444154; // IDAT
+
+    private final String extension;
+    private final String mimeType;
+    private final int[][] signatures;
+
+    ImageFormat(String extension, String mimeType, int[]... signatures) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+        this.signatures = signatures;
+    }
+
+    /**
+     * @return the preferred file extension without the leading dot, or empty if the format is unknown
+     */
+    public String getExtension() {
+        return this.extension;
+    }
+
+    public String getMimeType() {
+        return this.mimeType;
+    }
+
+    /**
+     * Sniffs the format from the leading bytes, falling back to the given mime type if the bytes are
+     * not recognized. Neither the position nor the limit of the buffer is changed.
+     */
+    public static ImageFormat detect(ByteBuffer bytes, @Nullable String mimeType) {
+        var result = sniff(bytes);
+        return result == UNKNOWN && mimeType != null ? fromMimeType(mimeType) : result;
+    }
+
+    public static ImageFormat sniff(ByteBuffer bytes) {
+        for (var format : VALUES) {
+            for (var signature : format.signatures) {
+                if (matches(bytes, signature)) {
+                    return format == PNG && isAnimatedPng(bytes) ? APNG : format;
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public static ImageFormat fromMimeType(String mimeType) {
+        var normalized = mimeType.toLowerCase(Locale.ROOT);
+        for (var format : VALUES) {
+            if (format != UNKNOWN && format.mimeType.equals(normalized)) {
+                return format;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean matches(ByteBuffer bytes, int[] signature) {
+        var position = bytes.position();
+        if (bytes.remaining() < signature.length) {
+            return false;
+        }
+        for (var i = 0; i < signature.length; ++i) {
+            if (signature[i] != ANY && (bytes.get(position + i) & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAnimatedPng(ByteBuffer bytes) {
+        // chunks are length (4 bytes), type (4 bytes), data, and crc (4 bytes)
+        var offset = (long) bytes.position() + PNG_SIGNATURE_LENGTH;
+        while (offset + 8 <= bytes.limit()) {
+            var length = bytes.getInt((int) offset) & 0xFFFFFFFFL;
+            var type = bytes.getInt((int) offset + 4);
+            if (type == PNG_ACTL) {
+                return true;
+            }
+            if (type == PNG_IDAT) {
+                return false;
+            }
+            offset += 12 + length;
+        }
+        return false;
+    }
+
+    /**
+     * Every character of the pattern matches the byte of the same value, except that '?' matches any byte.
+     */
+    private static int[] sig(String pattern) {
+        var signature = new int[pattern.length()];
+        for (var i = 0; i < signature.length; ++i) {
+            var c = pattern.charAt(i);
+            signature[i] = c == '?' ? ANY : c;
+        }
+        return signature;
+    }
+}
@@ -0,0 +1,310 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Inspects response bodies while they are being received, and aborts the transfer as soon as the body
+ * is known to be unacceptable: either the content length exceeds the limit, or the image dimensions
+ * parsed from the leading bytes (PNG, JPEG, GIF, WebP, and BMP headers) exceed the limit.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class ImageProbe {
+
+    private static final int BUFFER_SIZE = 1 << 13;
+    // the count of leading bytes before which the dimensions should appear, otherwise probing gives up
+    private static final int MAX_PROBE_LENGTH = 1 << 16;
+    // the count of leading bytes which is enough for sniffing every known format
+    private static final int MIN_PROBE_LENGTH = 32;
+
+    private static final long[] UNKNOWN_DIMENSIONS = new long[0];
+
+    private final int maxDimension;
+    private final long maxContentLength;
+
+    /**
+     * @param maxDimension     the max width or height of images
+     * @param maxContentLength the max count of bytes of response bodies
+     */
+    public ImageProbe(int maxDimension, long maxContentLength) {
+        this.maxDimension = maxDimension;
+        this.maxContentLength = maxContentLength;
+    }
+
+    public ClientExecChain decorate(ClientExecChain mainExec) {
+        return (route, request, context, execAware) -> {
+            var response = mainExec.execute(route, request, context, execAware);
+            try {
+                var entity = response.getEntity();
+                var code = response.getStatusLine().getStatusCode();
+                if (entity != null && code >= 200 && code < 300) {
+                    var contentLength = entity.getContentLength();
+                    if (contentLength > this.maxContentLength) {
+                        throw new RejectedException("Content length " + contentLength +
+                                " exceeds the limit " + this.maxContentLength + " of " + request.getURI());
+                    }
+                    response.setEntity(new ProbingEntity(entity, response));
+                }
+                return response;
+            } catch (IOException | HttpException | RuntimeException e) {
+                // closing the response before the body is consumed aborts the transfer
+                response.close();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Thrown when a response body is rejected, which should never be retried.
+     */
+    public static final class RejectedException extends IOException {
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private final class ProbingEntity extends HttpEntityWrapper {
+        private final CloseableHttpResponse response;
+
+        private ProbingEntity(HttpEntity wrappedEntity, CloseableHttpResponse response) {
+            super(wrappedEntity);
+            this.response = response;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ProbingStream(super.getContent(), this.response);
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            try (var stream = this.getContent()) {
+                var buffer = new byte[BUFFER_SIZE];
+                for (var n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                    outStream.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    private final class ProbingStream extends FilterInputStream {
+        private final CloseableHttpResponse response;
+
+        private long received;
+        private byte[] header = new byte[MIN_PROBE_LENGTH];
+        private int headerLength;
+        private boolean probed;
+        private @Nullable ImageFormat format;
+        // the offset of the next JPEG marker in the header, and the count of bytes of the segments which are
+        // still to be skipped, so that the metadata segments (EXIF, ICC, etc.) before the frame are never buffered
+        private int jpegOffset = 2;
+        private int jpegSkipped;
+
+        private ProbingStream(InputStream in, CloseableHttpResponse response) {
+            super(in);
+            this.response = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var result = super.read();
+            if (result >= 0) {
+                this.accept(new byte[]{(byte) result}, 0, 1);
+            } else {
+                this.finish();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var result = super.read(b, off, len);
+            if (result > 0) {
+                this.accept(b, off, result);
+            } else if (result < 0) {
+                this.finish();
+            }
+            return result;
+        }
+
+        private void accept(byte[] b, int off, int len) throws IOException {
+            this.received += len;
+            if (this.received > ImageProbe.this.maxContentLength) {
+                this.reject("Received bytes exceed the limit " + ImageProbe.this.maxContentLength);
+            }
+            // bytes are buffered piece by piece, since the header may be emptied by probing JPEG segments
+            while (!this.probed && len > 0) {
+                var skipped = Math.min(len, this.jpegSkipped);
+                this.jpegSkipped -= skipped;
+                off += skipped;
+                len -= skipped;
+                var length = Math.min(len, MAX_PROBE_LENGTH - this.headerLength);
+                if (this.headerLength + length > this.header.length) {
+                    var capacity = Math.max(this.headerLength + length, this.header.length * 2);
+                    this.header = Arrays.copyOf(this.header, Math.min(capacity, MAX_PROBE_LENGTH));
+                }
+                System.arraycopy(b, off, this.header, this.headerLength, length);
+                this.headerLength += length;
+                off += length;
+                len -= length;
+                if (length > 0 && (this.format != null || this.headerLength >= MIN_PROBE_LENGTH)) {
+                    this.probe(this.headerLength >= MAX_PROBE_LENGTH);
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            if (!this.probed) {
+                this.probe(true);
+            }
+        }
+
+        private void probe(boolean complete) throws IOException {
+            var bytes = ByteBuffer.wrap(this.header, 0, this.headerLength);
+            if (this.format == null) {
+                this.format = ImageFormat.sniff(bytes);
+            }
+            var dimensions = switch (this.format) {
+                case PNG, APNG -> probePng(bytes);
+                case JPEG -> this.probeJpeg(bytes);
+                case GIF -> probeGif(bytes);
+                case WEBP -> probeWebP(bytes);
+                case BMP -> probeBmp(bytes);
+                case AVIF, UNKNOWN -> UNKNOWN_DIMENSIONS;
+            };
+            if (dimensions == null && !complete) {
+                return;
+            }
+            this.probed = true;
+            this.header = new byte[0];
+            if (dimensions != null && dimensions != UNKNOWN_DIMENSIONS) {
+                var max = ImageProbe.this.maxDimension;
+                if (dimensions[0] <= 0 || dimensions[1] <= 0 || dimensions[0] > max || dimensions[1] > max) {
+                    this.reject("Image dimensions " + dimensions[0] + "x" + dimensions[1] +
+                            " are invalid or exceed the limit " + max);
+                }
+            }
+        }
+
+        /**
+         * Markers are parsed incrementally, and the payloads of the segments before the frame are dropped
+         * from the header or skipped while they are being received, so that the frame is always found no
+         * matter how large the metadata is.
+         */
+        @Nullable
+        private long[] probeJpeg(ByteBuffer bytes) {
+            var offset = this.jpegOffset;
+            while (offset + 4 <= bytes.limit()) {
+                if ((bytes.get(offset) & 0xFF) != 0xFF) {
+                    return UNKNOWN_DIMENSIONS;
+                }
+                var marker = bytes.get(offset + 1) & 0xFF;
+                if (marker == 0xFF) {
+                    // fill bytes
+                    offset += 1;
+                    continue;
+                }
+                if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD9) {
+                    // standalone markers
+                    offset += 2;
+                    continue;
+                }
+                var isStartOfFrame = marker >= 0xC0 && marker <= 0xCF
+                        && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+                if (isStartOfFrame) {
+                    // length (2 bytes), precision (1 byte), and then height and width in big endian
+                    if (offset + 9 > bytes.limit()) {
+                        break;
+                    }
+                    return new long[]{
+                            Short.toUnsignedInt(bytes.getShort(offset + 7)),
+                            Short.toUnsignedInt(bytes.getShort(offset + 5))};
+                }
+                offset += 2 + Short.toUnsignedInt(bytes.getShort(offset + 2));
+            }
+            if (offset >= this.headerLength) {
+                this.jpegSkipped = offset - this.headerLength;
+                this.headerLength = 0;
+            } else {
+                System.arraycopy(this.header, offset, this.header, 0, this.headerLength - offset);
+                this.headerLength -= offset;
+            }
+            this.jpegOffset = 0;
+            return null;
+        }
+
+        private void reject(String message) throws IOException {
+            this.response.close();
+            throw new RejectedException(message);
+        }
+    }
+
+    // the following methods return null if more bytes are required, and dimensions are never negative
+
+    @Nullable
+    private static long[] probePng(ByteBuffer bytes) {
+        // signature (8 bytes), and then the IHDR chunk: length (4 bytes), type (4 bytes), width, and height
+        return bytes.limit() < 24 ? null : new long[]{
+                Integer.toUnsignedLong(bytes.getInt(16)), Integer.toUnsignedLong(bytes.getInt(20))};
+    }
+
+    @Nullable
+    private static long[] probeGif(ByteBuffer bytes) {
+        // signature (6 bytes), and then the logical screen width and height in little endian
+        return bytes.limit() < 10 ? null : new long[]{u16le(bytes, 6), u16le(bytes, 8)};
+    }
+
+    @Nullable
+    private static long[] probeBmp(ByteBuffer bytes) {
+        // file header (14 bytes), and then the info header: size (4 bytes), width, and height (negative if top-down)
+        return bytes.limit() < 26 ? null : new long[]{
+                Math.abs((long) s32le(bytes, 18)), Math.abs((long) s32le(bytes, 22))};
+    }
+
+    @Nullable
+    private static long[] probeWebP(ByteBuffer bytes) {
+        if (bytes.limit() < 30) {
+            return null;
+        }
+        return switch (bytes.getInt(12)) {
+            // lossy: frame tag (3 bytes), start code (3 bytes), and then 14-bit width and height
+            case 0x56503820 -> new long[]{u16le(bytes, 26) & 0x3FFF, u16le(bytes, 28) & 0x3FFF};
+            // lossless: signature (1 byte), and then 14-bit width and height minus one
+            case 0x5650384C -> {
+                var bits = s32le(bytes, 21);
+                yield new long[]{(bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1};
+            }
+            // extended: flags (4 bytes), and then 24-bit canvas width and height minus one
+            case 0x56503858 -> new long[]{u24le(bytes, 24) + 1, u24le(bytes, 27) + 1};
+            default -> UNKNOWN_DIMENSIONS;
+        };
+    }
+
+    private static int u16le(ByteBuffer bytes, int offset) {
+        return (bytes.get(offset) & 0xFF) | (bytes.get(offset + 1) & 0xFF) << 8;
+    }
+
+    private static int u24le(ByteBuffer bytes, int offset) {
+        return u16le(bytes, offset) | (bytes.get(offset + 2) & 0xFF) << 16;
+    }
+
+    private static int s32le(ByteBuffer bytes, int offset) {
+        return u24le(bytes, offset) | bytes.get(offset + 3) << 24;
+    }
+}
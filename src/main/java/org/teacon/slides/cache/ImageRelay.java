@@ -0,0 +1,40 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A source of images other than their origins (e.g. the game server), which fetches each image from the
+ * origin once and shares it with every client. Entity tags of relayed images are assigned by the relay,
+ * so that cached images could be revalidated with the relay as well.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public interface ImageRelay {
+    /**
+     * Requests the image, and blocks until the response starts.
+     *
+     * @param location    the location of the image
+     * @param ifNoneMatch the entity tags of the cached image, if any
+     * @return the response, or empty if the relay does not have the image
+     */
+    Optional<Response> fetch(URI location, List<String> ifNoneMatch) throws IOException;
+
+    /**
+     * @param eTag          the entity tag of the image
+     * @param contentType   the content type of the image
+     * @param contentLength the length of the body
+     * @param body          the body which is still being received, or null if the cached image is not modified
+     */
+    record Response(String eTag, String contentType, long contentLength, @Nullable InputStream body) {
+    }
+}
@@ -0,0 +1,156 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.AuthenticationStrategy;
+import org.apache.http.client.UserTokenHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.util.EntityUtils;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Builds a caching http client whose transport is {@link HttpClient} instead of the blocking
+ * connection pool of apache http client. Only the main execution (the one which sends requests
+ * to the remote server) is replaced, so that the caching (RFC 7234), protocol processing, and
+ * redirect handling of apache http client are still in effect.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class JavaHttpClientBuilder extends ScheduledHttpClientBuilder {
+
+    // headers managed by java http client itself, which are not allowed to be set
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host",
+            "upgrade", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding");
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient client;
+
+    public JavaHttpClientBuilder(DownloadScheduler scheduler, ImageProbe probe,
+                                 ResumableDownloads resumable, RelayTransport relay) {
+        super(scheduler, probe, resumable, relay);
+        // redirects are followed by apache http client, so that every location is cached by its own
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER).connectTimeout(CONNECT_TIMEOUT).build();
+    }
+
+    @Override
+    protected ClientExecChain createMainExec(HttpRequestExecutor requestExec,
+                                             HttpClientConnectionManager connManager,
+                                             ConnectionReuseStrategy reuseStrategy,
+                                             ConnectionKeepAliveStrategy keepAliveStrategy,
+                                             HttpProcessor proxyHttpProcessor,
+                                             AuthenticationStrategy targetAuthStrategy,
+                                             AuthenticationStrategy proxyAuthStrategy,
+                                             UserTokenHandler userTokenHandler) {
+        return this::execute;
+    }
+
+    private CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                                          HttpClientContext context,
+                                          @Nullable HttpExecutionAware execAware) throws IOException, HttpException {
+        var uri = request.getURI();
+        if (!uri.isAbsolute()) {
+            uri = URI.create(route.getTargetHost().toURI()).resolve(uri);
+        }
+        var builder = HttpRequest.newBuilder(uri);
+        for (Header header : request.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        var publisher = HttpRequest.BodyPublishers.noBody();
+        if (request instanceof HttpEntityEnclosingRequest enclosing && enclosing.getEntity() != null) {
+            publisher = HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(enclosing.getEntity()));
+        }
+        builder.method(request.getMethod(), publisher);
+        context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+        // the body is streamed while it is being received, so that it could be written to disk directly
+        var future = this.client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (execAware != null) {
+            execAware.setCancellable(() -> future.cancel(true));
+        }
+        try {
+            var response = toApacheResponse(future.get());
+            context.setAttribute(HttpCoreContext.HTTP_RESPONSE, response);
+            return response;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + uri);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to request " + uri, e.getCause());
+        }
+    }
+
+    private static CloseableHttpResponse toApacheResponse(HttpResponse<InputStream> response) {
+        // caching semantics of http/2 are identical to the ones of http/1.1
+        var code = response.statusCode();
+        var reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ROOT);
+        var result = new Response(new BasicStatusLine(HttpVersion.HTTP_1_1, code, reason), response.body());
+        response.headers().map().forEach((name, values) -> {
+            if (!name.startsWith(":")) {
+                values.forEach(value -> result.addHeader(name, value));
+            }
+        });
+        var entity = new BasicHttpEntity();
+        entity.setContent(response.body());
+        entity.setContentLength(response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1L));
+        entity.setContentType(result.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+        entity.setContentEncoding(result.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+        result.setEntity(entity);
+        return result;
+    }
+
+    private static final class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private final InputStream body;
+
+        private Response(BasicStatusLine statusLine, InputStream body) {
+            super(statusLine);
+            this.body = body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the body before it is fully read cancels the stream (or the connection for http/1.1)
+            this.body.close();
+        }
+    }
+}
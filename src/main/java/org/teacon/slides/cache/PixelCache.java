@@ -0,0 +1,190 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The second tier of the image cache, which keeps decoded RGBA pixels on disk, keyed by the SHA-1 of
+ * the compressed image. A pixel file is a fixed header followed by the raw pixels of the base level,
+ * so that it could be mapped into memory and uploaded to the texture directly without any decoding.
+ * <p>
+ * Pixel files are counted in the quota of the cache storage together with the compressed images they
+ * are decoded from, and they are evicted together as well. Pixel files are not compressed, since they
+ * would not be mapped and uploaded directly otherwise.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class PixelCache {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private static final int MAGIC = 0x53535058; // SSPX
+    private static final int VERSION = 1;
+    // magic, version, width, height, and rgba swizzle
+    private static final int HEADER_SIZE = 32;
+
+    private static final String DIRECTORY = "pixels";
+    private static final String EXTENSION = ".rgba";
+
+    private final Path pixelsPath;
+    private final Path tempPath;
+    private final Runnable onSave;
+    // sizes of the pixel files keyed by their content hashes, which are counted in the quota of the storage
+    private final Map<HashCode, Long> sizes = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param onSave the action which runs after a pixel file has been saved (e.g. checking the quota)
+     */
+    PixelCache(Path parentPath, Path tempPath, Runnable onSave) throws IOException {
+        this.pixelsPath = Files.createDirectories(parentPath.resolve(DIRECTORY));
+        this.tempPath = tempPath;
+        this.onSave = onSave;
+    }
+
+    /**
+     * Records the sizes of the existing pixel files, which should be called once in the background.
+     */
+    void scan() throws IOException {
+        try (var stream = Files.newDirectoryStream(this.pixelsPath, "*" + EXTENSION)) {
+            for (var path : stream) {
+                var contentHash = FilenameAllocation.parseSha1HashName(path.getFileName().toString());
+                if (contentHash.isPresent()) {
+                    try {
+                        this.sizes.putIfAbsent(contentHash.get(), Files.size(path));
+                    } catch (IOException e) {
+                        LOGGER.debug(MARKER, "Failed to check pixel file {}. ", path, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of the pixel file decoded from the given image, or zero if there is none
+     */
+    long size(HashCode contentHash) {
+        return this.sizes.getOrDefault(contentHash, 0L);
+    }
+
+    /**
+     * @return the size of the pixel file if it has been deleted, otherwise zero
+     */
+    long delete(HashCode contentHash) {
+        var deletedBytes = CacheStorage.deleteQuietly(this.pixelsPath.resolve(contentHash + EXTENSION));
+        if (deletedBytes > 0 || !this.contains(contentHash)) {
+            this.sizes.remove(contentHash);
+        }
+        return deletedBytes;
+    }
+
+    static Path resolveDirectory(Path parentPath) {
+        return parentPath.resolve(DIRECTORY);
+    }
+
+    public boolean contains(HashCode contentHash) {
+        return Files.isRegularFile(this.pixelsPath.resolve(contentHash + EXTENSION));
+    }
+
+    public Optional<Pixels> load(HashCode contentHash) {
+        var path = this.pixelsPath.resolve(contentHash + EXTENSION);
+        if (!Files.isRegularFile(path)) {
+            this.missCount.increment();
+            return Optional.empty();
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (size >= HEADER_SIZE) {
+                var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                var magic = buffer.getInt(0);
+                var version = buffer.getInt(4);
+                var width = buffer.getInt(8);
+                var height = buffer.getInt(12);
+                if (magic == MAGIC && version == VERSION && width > 0 && height > 0
+                        && size == HEADER_SIZE + 4L * width * height) {
+                    var swizzle = new int[]{buffer.getInt(16), buffer.getInt(20), buffer.getInt(24), buffer.getInt(28)};
+                    var pixels = buffer.slice(HEADER_SIZE, 4 * width * height);
+                    this.hitCount.increment();
+                    return Optional.of(new Pixels(width, height, pixels, swizzle));
+                }
+            }
+            LOGGER.debug(MARKER, "Discarded malformed pixel file {}. ", path);
+            Files.deleteIfExists(path);
+            this.sizes.remove(contentHash);
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to read pixel file {}. ", path, e);
+        }
+        this.missCount.increment();
+        return Optional.empty();
+    }
+
+    public void save(HashCode contentHash, Pixels pixels) {
+        var path = this.pixelsPath.resolve(contentHash + EXTENSION);
+        if (Files.isRegularFile(path)) {
+            return;
+        }
+        try {
+            var tmp = Files.createTempFile(this.tempPath, "pixels-", ".tmp");
+            try {
+                try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    var headerBytes = ByteBuffer.allocate(HEADER_SIZE);
+                    headerBytes.putInt(MAGIC).putInt(VERSION).putInt(pixels.width()).putInt(pixels.height());
+                    for (var component : pixels.swizzle()) {
+                        headerBytes.putInt(component);
+                    }
+                    var body = pixels.buffer().duplicate();
+                    for (var buffers = new ByteBuffer[]{headerBytes.flip(), body}; body.hasRemaining(); ) {
+                        channel.write(buffers);
+                    }
+                }
+                // pixel files are content addressed so that an existing file always has the same content
+                CacheStorage.moveAtomically(tmp, path);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            this.sizes.put(contentHash, HEADER_SIZE + (long) pixels.buffer().remaining());
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to save pixel file {}. ", path, e);
+            return;
+        }
+        this.onSave.run();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    /**
+     * @param width   the width of the base level
+     * @param height  the height of the base level
+     * @param buffer  the pixels of the base level, four bytes per pixel
+     * @param swizzle the rgba swizzle which should be applied to the texture
+     */
+    public record Pixels(int width, int height, ByteBuffer buffer, int[] swizzle) {
+    }
+}
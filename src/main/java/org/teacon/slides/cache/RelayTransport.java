@@ -0,0 +1,127 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Sends requests to an {@link ImageRelay} if there is one, and falls back to the origin if the relay misses
+ * or fails. Relayed responses are ordinary responses to the caching layer, which are never fresh, so that
+ * every online request is revalidated with the relay by the entity tag assigned by the relay.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class RelayTransport {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private final Supplier<ImageRelay> relay;
+
+    /**
+     * @param relay supplies the current relay, or null if there is none
+     */
+    public RelayTransport(Supplier<ImageRelay> relay) {
+        this.relay = relay;
+    }
+
+    public ClientExecChain decorate(ClientExecChain mainExec) {
+        return (route, request, context, execAware) -> {
+            var relay = this.relay.get();
+            if (relay == null || !"GET".equals(request.getMethod())) {
+                return mainExec.execute(route, request, context, execAware);
+            }
+            var uri = request.getURI();
+            if (!uri.isAbsolute()) {
+                uri = URI.create(route.getTargetHost().toURI()).resolve(uri);
+            }
+            var ifNoneMatch = new ArrayList<String>();
+            for (Header header : request.getHeaders(HttpHeaders.IF_NONE_MATCH)) {
+                for (var tag : header.getValue().split(",")) {
+                    ifNoneMatch.add(tag.trim());
+                }
+            }
+            Optional<ImageRelay.Response> relayed;
+            try {
+                relayed = relay.fetch(uri, ifNoneMatch);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                LOGGER.debug(MARKER, "Failed to fetch {} from the relay, falling back to the origin.", uri, e);
+                relayed = Optional.empty();
+            }
+            if (relayed.isEmpty()) {
+                LOGGER.debug(MARKER, "Relay missed {}, falling back to the origin.", uri);
+                return mainExec.execute(route, request, context, execAware);
+            }
+            var response = toApacheResponse(relayed.get());
+            context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+            context.setAttribute(HttpCoreContext.HTTP_RESPONSE, response);
+            return response;
+        };
+    }
+
+    private static CloseableHttpResponse toApacheResponse(ImageRelay.Response relayed) {
+        var body = relayed.body();
+        var code = body == null ? HttpStatus.SC_NOT_MODIFIED : HttpStatus.SC_OK;
+        var reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ROOT);
+        var result = new Response(new BasicStatusLine(HttpVersion.HTTP_1_1, code, reason), body);
+        result.addHeader(HttpHeaders.DATE, DateUtils.formatDate(new Date()));
+        result.addHeader(HttpHeaders.ETAG, relayed.eTag());
+        result.addHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        if (body != null) {
+            result.addHeader(HttpHeaders.CONTENT_TYPE, relayed.contentType());
+            result.addHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(relayed.contentLength()));
+            var entity = new BasicHttpEntity();
+            entity.setContent(body);
+            entity.setContentLength(relayed.contentLength());
+            entity.setContentType(result.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+            result.setEntity(entity);
+        }
+        return result;
+    }
+
+    private static final class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private final @Nullable InputStream body;
+
+        private Response(BasicStatusLine statusLine, @Nullable InputStream body) {
+            super(statusLine);
+            this.body = body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.body != null) {
+                this.body.close();
+            }
+        }
+    }
+}
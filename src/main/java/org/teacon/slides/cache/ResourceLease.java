@@ -0,0 +1,82 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.neoforged.fml.loading.FMLEnvironment;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One reference to the temporary file behind an {@link ImageBytes}, which is owned by exactly one consumer
+ * and released when the consumer closes the bytes. A lease which becomes unreachable without being closed
+ * is a leak: it is released anyway, and reported with the stack trace of its creation in debug builds.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class ResourceLease {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private static final boolean LEAK_DETECTION =
+            !FMLEnvironment.production || Boolean.getBoolean("slideshow.cache.leakDetection");
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final LongAdder LEAK_COUNT = new LongAdder();
+
+    private final State state;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Takes over one reference of the resource, which should have been retained by the caller.
+     */
+    ResourceLease(TempFileResource resource) {
+        this.state = new State(resource, LEAK_DETECTION ? new Throwable("Lease created") : null);
+        this.cleanable = CLEANER.register(this, this.state);
+    }
+
+    /**
+     * @return the count of leases which have never been closed since the game started
+     */
+    public static long getLeakCount() {
+        return LEAK_COUNT.sum();
+    }
+
+    /**
+     * Releases the reference. Calling it more than once has no effect.
+     */
+    public void close() {
+        this.state.closed = true;
+        this.cleanable.clean();
+    }
+
+    // must not refer to the lease itself, otherwise the lease would never become unreachable
+    private static final class State implements Runnable {
+        private final TempFileResource resource;
+        private final @Nullable Throwable creation;
+        private volatile boolean closed;
+
+        private State(TempFileResource resource, @Nullable Throwable creation) {
+            this.resource = resource;
+            this.creation = creation;
+        }
+
+        @Override
+        public void run() {
+            this.resource.release();
+            if (!this.closed) {
+                LEAK_COUNT.increment();
+                if (this.creation != null) {
+                    LOGGER.warn(MARKER, "Image bytes were never closed before being garbage collected.", this.creation);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Persists the bodies of large responses while they are being received, so that a transfer which drops
+ * partway could be continued by the next request with {@code Range} and {@code If-Range} headers, rather
+ * than downloading the whole body again. A resumed transfer is presented as a complete 200 response to the
+ * caching layer, whose body is the persisted part followed by the remaining part from the remote server.
+ * <p>
+ * Only responses which advertise {@code Accept-Ranges: bytes} and carry a strong validator are persisted.
+ * If the validator has changed, the remote server sends the whole body instead, and the persisted part is
+ * discarded.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class ResumableDownloads {
+
+    private static final Logger LOGGER = LogManager.getLogger("SlideShow");
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
+    private final Path partialPath;
+    private final long minLength;
+    // partial bodies which are being written, and which should never be touched by another request
+    // (including the ones sent by other processes sharing the directory, which are excluded by file locks)
+    private final Map<Path, FileLock> active = new ConcurrentHashMap<>();
+    private final Path lockFilePath;
+    private @Nullable FileChannel lockChannel;
+
+    /**
+     * @param partialPath the directory where partial bodies are persisted
+     * @param minLength   the min content length of responses whose bodies are persisted
+     */
+    public ResumableDownloads(Path partialPath, long minLength) {
+        this.partialPath = partialPath;
+        this.minLength = minLength;
+        this.lockFilePath = partialPath.resolve("partial.lock");
+    }
+
+    public ClientExecChain decorate(ClientExecChain mainExec) {
+        return (route, request, context, execAware) -> {
+            if (!"GET".equals(request.getMethod()) || isConditional(request)) {
+                // revalidations are served by the caching layer, and their bodies are never persisted
+                return mainExec.execute(route, request, context, execAware);
+            }
+            var uri = request.getURI();
+            if (!uri.isAbsolute()) {
+                uri = URI.create(route.getTargetHost().toURI()).resolve(uri);
+            }
+            @SuppressWarnings("deprecation")
+            var name = Hashing.sha1().hashString(uri.toString(), StandardCharsets.UTF_8).toString();
+            var partial = new Partial(this.partialPath.resolve(name + ".part"), this.partialPath.resolve(name + ".json"));
+            if (!this.claim(partial.body())) {
+                return mainExec.execute(route, request, context, execAware);
+            }
+            try {
+                var response = this.resume(mainExec, route, request, context, execAware, uri, partial);
+                if (response == null) {
+                    response = this.persist(mainExec.execute(route, request, context, execAware), uri, partial);
+                }
+                return response;
+            } catch (IOException | HttpException | RuntimeException e) {
+                this.unclaim(partial.body());
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @return the response to the range request, or null if a full request should be sent instead
+     */
+    @Nullable
+    private CloseableHttpResponse resume(ClientExecChain mainExec, HttpRoute route, HttpRequestWrapper request,
+                                         HttpClientContext context, @Nullable HttpExecutionAware execAware,
+                                         URI uri, Partial partial) throws IOException, HttpException {
+        var metadata = partial.load();
+        if (metadata == null) {
+            partial.discard();
+            return null;
+        }
+        var offset = Files.size(partial.body());
+        if (!metadata.url().equals(uri.toString()) || offset <= 0 || offset >= metadata.length()) {
+            partial.discard();
+            return null;
+        }
+        request.setHeader(HttpHeaders.RANGE, "bytes=" + offset + "-");
+        request.setHeader(HttpHeaders.IF_RANGE, metadata.validator());
+        CloseableHttpResponse response;
+        try {
+            response = mainExec.execute(route, request, context, execAware);
+        } finally {
+            // the caching layer shares the request, which should look the same as the one it has sent
+            request.removeHeaders(HttpHeaders.RANGE);
+            request.removeHeaders(HttpHeaders.IF_RANGE);
+        }
+        try {
+            var code = response.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_PARTIAL_CONTENT) {
+                var range = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+                var matcher = CONTENT_RANGE.matcher(range == null ? "" : range.getValue().trim());
+                var entity = response.getEntity();
+                if (entity != null && matcher.matches() && Long.parseLong(matcher.group(1)) == offset
+                        && Long.parseLong(matcher.group(3)) == metadata.length()
+                        && Long.parseLong(matcher.group(2)) == metadata.length() - 1) {
+                    LOGGER.debug(MARKER, "Resuming download of {} from {} of {} byte(s).", uri, offset, metadata.length());
+                    return this.toResumed(response, entity, partial, metadata.length());
+                }
+                // the range is not the one requested, so that the persisted part is no longer trusted
+                LOGGER.debug(MARKER, "Discarded partial body of {} for unexpected range {}.", uri, range);
+                partial.discard();
+                response.close();
+                return null;
+            }
+            if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                partial.discard();
+                response.close();
+                return null;
+            }
+            if (code == HttpStatus.SC_OK) {
+                // the validator has changed, and the whole body is sent instead
+                partial.discard();
+                return this.persist(response, uri, partial);
+            }
+            // the persisted part is kept for the next attempt if the remote server is temporarily unavailable
+            return this.release(response, partial);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    private CloseableHttpResponse toResumed(CloseableHttpResponse response, HttpEntity entity,
+                                            Partial partial, long length) throws IOException {
+        var output = Files.newOutputStream(partial.body(), StandardOpenOption.APPEND);
+        var resumed = new BasicHttpEntity();
+        resumed.setContentLength(length);
+        resumed.setContentType(entity.getContentType());
+        resumed.setContentEncoding(entity.getContentEncoding());
+        // the persisted part should be opened before the remaining part is appended to it
+        resumed.setContent(new SequenceInputStream(Files.newInputStream(partial.body()),
+                new PersistingStream(entity.getContent(), output, partial)));
+        response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.removeHeaders(HttpHeaders.CONTENT_RANGE);
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+        response.setEntity(resumed);
+        return response;
+    }
+
+    private CloseableHttpResponse persist(CloseableHttpResponse response, URI uri, Partial partial) throws IOException {
+        var entity = response.getEntity();
+        var validator = getStrongValidator(response);
+        var acceptRanges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        var resumable = entity != null && validator != null && entity.getContentEncoding() == null
+                && response.getStatusLine().getStatusCode() == HttpStatus.SC_OK
+                && entity.getContentLength() >= this.minLength
+                && acceptRanges != null && acceptRanges.getValue().toLowerCase(Locale.ROOT).contains("bytes");
+        if (!resumable) {
+            return this.release(response, partial);
+        }
+        try {
+            partial.save(new Metadata(uri.toString(), validator, entity.getContentLength()));
+            var output = Files.newOutputStream(partial.body());
+            var persisted = new BasicHttpEntity();
+            persisted.setContentLength(entity.getContentLength());
+            persisted.setContentType(entity.getContentType());
+            persisted.setContent(new PersistingStream(entity.getContent(), output, partial));
+            response.setEntity(persisted);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            partial.discard();
+            throw e;
+        }
+    }
+
+    private CloseableHttpResponse release(CloseableHttpResponse response, Partial partial) {
+        this.unclaim(partial.body());
+        return response;
+    }
+
+    private static boolean isConditional(HttpRequestWrapper request) {
+        return request.containsHeader(HttpHeaders.IF_NONE_MATCH) || request.containsHeader(HttpHeaders.IF_MODIFIED_SINCE)
+                || request.containsHeader(HttpHeaders.IF_MATCH) || request.containsHeader(HttpHeaders.IF_UNMODIFIED_SINCE)
+                || request.containsHeader(HttpHeaders.RANGE);
+    }
+
+    @Nullable
+    private static String getStrongValidator(CloseableHttpResponse response) {
+        Header eTag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (eTag != null && !eTag.getValue().startsWith("W/")) {
+            return eTag.getValue();
+        }
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Deletes partial bodies which have not been written since the given time, and the halves of partial
+     * bodies whose other halves are missing. Partial bodies being written are never touched.
+     *
+     * @return the count of bytes reclaimed
+     */
+    public long collectGarbage(long staleBefore) throws IOException {
+        var names = new HashSet<String>();
+        try (var stream = Files.newDirectoryStream(this.partialPath, Files::isRegularFile)) {
+            for (var path : stream) {
+                var name = path.getFileName().toString();
+                if (name.endsWith(".part") || name.endsWith(".json")) {
+                    names.add(name.substring(0, name.lastIndexOf('.')));
+                }
+            }
+        }
+        var reclaimedBytes = 0L;
+        for (var name : names) {
+            var partial = new Partial(this.partialPath.resolve(name + ".part"), this.partialPath.resolve(name + ".json"));
+            if (this.claim(partial.body())) {
+                try {
+                    var orphan = !Files.isRegularFile(partial.body()) || !Files.isRegularFile(partial.metadata());
+                    var bodyBytes = orphan ? CacheStorage.deleteQuietly(partial.body())
+                            : CacheStorage.deleteIfStale(partial.body(), staleBefore);
+                    if (orphan || bodyBytes > 0L) {
+                        reclaimedBytes += bodyBytes + CacheStorage.deleteQuietly(partial.metadata());
+                    }
+                } finally {
+                    this.unclaim(partial.body());
+                }
+            }
+        }
+        return reclaimedBytes;
+    }
+
+    /**
+     * Claims the partial body for this request. A byte of the lock file, which is chosen by the name of
+     * the partial body, is locked as well, so that other processes could not claim the same one.
+     */
+    private boolean claim(Path body) {
+        var claimed = new AtomicBoolean();
+        this.active.computeIfAbsent(body, k -> {
+            var lock = this.tryLock(Integer.toUnsignedLong(k.getFileName().toString().hashCode()));
+            claimed.set(lock != null);
+            return lock;
+        });
+        return claimed.get();
+    }
+
+    private void unclaim(Path body) {
+        var lock = this.active.remove(body);
+        if (lock != null) {
+            // the shared channel should never be closed by the interrupt status either
+            var interrupted = Thread.interrupted();
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // the lock has been released if the channel is closed
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Locks the byte with the interrupt status cleared, since the channel is shared by all the partial
+     * bodies, and interrupting a thread which is using it (e.g. a cancelled download) would close it and
+     * release all the locks silently.
+     */
+    @Nullable
+    private synchronized FileLock tryLock(long position) {
+        var interrupted = Thread.interrupted();
+        try {
+            var channel = this.lockChannel;
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(this.lockFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                this.lockChannel = channel;
+            }
+            return channel.tryLock(position, 1L, false);
+        } catch (OverlappingFileLockException e) {
+            // another partial body of this process happens to lock the same byte
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug(MARKER, "Failed to lock partial body.", e);
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private record Metadata(String url, String validator, long length) {
+    }
+
+    private record Partial(Path body, Path metadata) {
+        @Nullable
+        private Metadata load() {
+            if (!Files.isRegularFile(this.body) || !Files.isRegularFile(this.metadata)) {
+                return null;
+            }
+            try {
+                var root = JsonParser.parseString(Files.readString(this.metadata, StandardCharsets.UTF_8)).getAsJsonObject();
+                return new Metadata(root.get("url").getAsString(),
+                        root.get("validator").getAsString(), root.get("length").getAsLong());
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private void save(Metadata metadata) throws IOException {
+            var root = new JsonObject();
+            root.addProperty("url", metadata.url());
+            root.addProperty("validator", metadata.validator());
+            root.addProperty("length", metadata.length());
+            Files.writeString(this.metadata, root.toString(), StandardCharsets.UTF_8);
+        }
+
+        private void discard() {
+            try {
+                Files.deleteIfExists(this.body);
+                Files.deleteIfExists(this.metadata);
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to discard partial body {}.", this.body, e);
+            }
+        }
+    }
+
+    /**
+     * Appends the bytes read to the partial body. The partial body is discarded when the stream is closed,
+     * either after the whole body has been read (since it has been taken by the caching layer), or before
+     * the end (since the body has been given up on purpose), but is kept if the transfer has failed.
+     */
+    private final class PersistingStream extends FilterInputStream {
+        private final OutputStream output;
+        private final Partial partial;
+        private boolean failed;
+        private boolean closed;
+
+        private PersistingStream(InputStream in, OutputStream output, Partial partial) {
+            super(in);
+            this.output = output;
+            this.partial = partial;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            var result = this.read(b, 0, 1);
+            return result > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                var result = super.read(b, off, len);
+                if (result > 0) {
+                    this.output.write(b, off, result);
+                }
+                return result;
+            } catch (IOException e) {
+                this.failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // every skipped byte should be persisted as well
+            var result = this.read(new byte[(int) Math.min(n, 1 << 13)]);
+            return Math.max(result, 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                this.closed = true;
+                try (this.output) {
+                    super.close();
+                } finally {
+                    if (!this.failed) {
+                        this.partial.discard();
+                    } else {
+                        LOGGER.debug(MARKER, "Kept partial body {} for resuming later.", this.partial.body());
+                    }
+                    unclaim(this.partial.body());
+                }
+            }
+        }
+    }
+}
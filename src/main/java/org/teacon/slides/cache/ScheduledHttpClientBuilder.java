@@ -0,0 +1,48 @@
+package org.teacon.slides.cache;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Builds a caching http client whose requests to remote servers are scheduled by a {@link DownloadScheduler}.
+ * The scheduler is placed under the caching layer, so that responses served by the cache are never queued.
+ * Response bodies are inspected by an {@link ImageProbe} before they reach the caching layer, so that
+ * unacceptable bodies are neither downloaded completely nor cached. Large bodies are persisted by
+ * {@link ResumableDownloads} under the probe, so that an interrupted transfer is continued next time.
+ * Requests are sent to the {@link ImageRelay} through a {@link RelayTransport} if there is one, and only
+ * the requests which the relay misses reach the scheduler.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+class ScheduledHttpClientBuilder extends CachingHttpClientBuilder {
+
+    private final DownloadScheduler scheduler;
+    private final ImageProbe probe;
+    private final ResumableDownloads resumable;
+    private final RelayTransport relay;
+
+    public ScheduledHttpClientBuilder(DownloadScheduler scheduler, ImageProbe probe,
+                                      ResumableDownloads resumable, RelayTransport relay) {
+        this.scheduler = scheduler;
+        this.probe = probe;
+        this.resumable = resumable;
+        this.relay = relay;
+        // the scheduler owns the limits, and a request holding its permits should never wait for the pool
+        this.setMaxConnTotal(scheduler.getMaxTotal());
+        this.setMaxConnPerRoute(scheduler.getMaxPerHost());
+        this.setRetryHandler((exception, executionCount, context) -> !(exception instanceof ImageProbe.RejectedException)
+                && DefaultHttpRequestRetryHandler.INSTANCE.retryRequest(exception, executionCount, context));
+    }
+
+    @Override
+    protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+        var originExec = this.resumable.decorate(this.scheduler.decorate(mainExec));
+        return super.decorateMainExec(this.probe.decorate(this.relay.decorate(originExec)));
+    }
+}
@@ -0,0 +1,120 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.http.impl.client.cache.FileResource;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A temporary file which buffers a response body received from the remote server. The file is
+ * reference counted: the caching layer holds the first reference until the request finishes, and
+ * every consumer of the body holds one more reference. The file is deleted as soon as the last
+ * reference is released, unless the file has been moved into the cache storage by then.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+final class TempFileResource extends FileResource {
+
+    private final HashCode contentHash;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean creatorReleased = new AtomicBoolean();
+    private File file;
+    private boolean published;
+
+    /**
+     * @param contentHash the SHA-1 of the file, which has been computed while the file was being written
+     */
+    public TempFileResource(File file, HashCode contentHash) {
+        super(file);
+        this.file = file;
+        this.contentHash = contentHash;
+    }
+
+    public HashCode getContentHash() {
+        return this.contentHash;
+    }
+
+    public synchronized Path getPath() {
+        return this.file.toPath();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws FileNotFoundException {
+        return new Stream(this, this.file);
+    }
+
+    @Override
+    public synchronized long length() {
+        return this.file.length();
+    }
+
+    /**
+     * Moves the file to the given path in the cache storage, after which the file is read from there, and
+     * is no longer deleted when the last reference is released, since it is owned by the storage. If the
+     * path exists already, the file is deleted instead, since the existing one has the same content.
+     *
+     * @return false if the file has been deleted instead of being moved
+     */
+    public synchronized boolean publish(Path path) throws IOException {
+        var moved = CacheStorage.moveAtomically(this.file.toPath(), path);
+        this.file = path.toFile();
+        this.published = true;
+        return moved;
+    }
+
+    /**
+     * Adds references, which should be released by the consumers of the body.
+     */
+    public void retain(int count) {
+        this.refCount.getAndUpdate(n -> {
+            if (n <= 0) {
+                throw new IllegalStateException("Resource " + this.file + " has been released");
+            }
+            return n + count;
+        });
+    }
+
+    public void release() {
+        if (this.refCount.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (!this.published) {
+                    super.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the reference of the caching layer. Calling it more than once has no effect.
+     */
+    @Override
+    public void dispose() {
+        if (this.creatorReleased.compareAndSet(false, true)) {
+            this.release();
+        }
+    }
+
+    public static final class Stream extends FileInputStream {
+        private final TempFileResource resource;
+
+        private Stream(TempFileResource resource, File file) throws FileNotFoundException {
+            super(file);
+            this.resource = resource;
+        }
+
+        public TempFileResource getResource() {
+            return this.resource;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.teacon.slides.network;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.server.level.ServerPlayer;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.relay.SlideRelayServer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Tells the server that the response to a {@link SlideRelayRequestPacket} is no longer needed (e.g. the
+ * download has been cancelled), so that the rest of the response is never sent.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class SlideRelayCancelPacket implements CustomPacketPayload {
+    public static final CustomPacketPayload.Type<SlideRelayCancelPacket> TYPE;
+    public static final StreamCodec<RegistryFriendlyByteBuf, SlideRelayCancelPacket> CODEC;
+
+    static {
+        TYPE = new CustomPacketPayload.Type<>(SlideShow.id("relay_cancel"));
+        CODEC = StreamCodec.ofMember(SlideRelayCancelPacket::write, SlideRelayCancelPacket::new);
+    }
+
+    private final int requestId;
+
+    public SlideRelayCancelPacket(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public SlideRelayCancelPacket(RegistryFriendlyByteBuf buf) {
+        this.requestId = buf.readVarInt();
+    }
+
+    public void write(RegistryFriendlyByteBuf buf) {
+        buf.writeVarInt(this.requestId);
+    }
+
+    public void handle(IPayloadContext context) {
+        context.enqueueWork(() -> {
+            if (context.player() instanceof ServerPlayer serverPlayer) {
+                SlideRelayServer.cancel(serverPlayer, this.requestId);
+            }
+        });
+    }
+
+    @Override
+    public CustomPacketPayload.Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,42 @@
+package org.teacon.slides.network;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Tells the client that the server relays slide images. The relay channels are also registered by every
+ * client (including the integrated server of singleplayer and LAN games), so that the channels alone do
+ * not tell whether the relay is enabled, and clients never use the relay before receiving this packet.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class SlideRelayEnabledPacket implements CustomPacketPayload {
+    public static final SlideRelayEnabledPacket INSTANCE = new SlideRelayEnabledPacket();
+    public static final CustomPacketPayload.Type<SlideRelayEnabledPacket> TYPE;
+    public static final StreamCodec<RegistryFriendlyByteBuf, SlideRelayEnabledPacket> CODEC;
+
+    static {
+        TYPE = new CustomPacketPayload.Type<>(SlideShow.id("relay_enabled"));
+        CODEC = StreamCodec.unit(INSTANCE);
+    }
+
+    private SlideRelayEnabledPacket() {
+    }
+
+    public void handle(IPayloadContext context) {
+        context.enqueueWork(SlideShow::enableRelay);
+    }
+
+    @Override
+    public CustomPacketPayload.Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,63 @@
+package org.teacon.slides.network;
+
+import com.google.common.collect.ImmutableList;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.server.level.ServerPlayer;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.relay.SlideRelayServer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class SlideRelayRequestPacket implements CustomPacketPayload {
+    public static final CustomPacketPayload.Type<SlideRelayRequestPacket> TYPE;
+    public static final StreamCodec<RegistryFriendlyByteBuf, SlideRelayRequestPacket> CODEC;
+
+    static {
+        TYPE = new CustomPacketPayload.Type<>(SlideShow.id("relay_request"));
+        CODEC = StreamCodec.ofMember(SlideRelayRequestPacket::write, SlideRelayRequestPacket::new);
+    }
+
+    private final int requestId;
+    private final String url;
+    private final ImmutableList<String> ifNoneMatch;
+
+    public SlideRelayRequestPacket(int requestId, String url, List<String> ifNoneMatch) {
+        this.requestId = requestId;
+        this.url = url;
+        this.ifNoneMatch = ImmutableList.copyOf(ifNoneMatch);
+    }
+
+    public SlideRelayRequestPacket(RegistryFriendlyByteBuf buf) {
+        this.requestId = buf.readVarInt();
+        this.url = buf.readUtf();
+        this.ifNoneMatch = ImmutableList.copyOf(buf.readList(b -> b.readUtf()));
+    }
+
+    public void write(RegistryFriendlyByteBuf buf) {
+        buf.writeVarInt(this.requestId);
+        buf.writeUtf(this.url);
+        buf.writeCollection(this.ifNoneMatch, (b, tag) -> b.writeUtf(tag));
+    }
+
+    public void handle(IPayloadContext context) {
+        context.enqueueWork(() -> {
+            if (context.player() instanceof ServerPlayer serverPlayer) {
+                SlideRelayServer.request(serverPlayer, this.requestId, this.url, this.ifNoneMatch);
+            }
+        });
+    }
+
+    @Override
+    public CustomPacketPayload.Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,125 @@
+package org.teacon.slides.network;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * One part of the response to a {@link SlideRelayRequestPacket}. A response is either a single packet
+ * (a miss, or not modified), or a header followed by chunks of data and an end.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class SlideRelayResponsePacket implements CustomPacketPayload {
+    public static final CustomPacketPayload.Type<SlideRelayResponsePacket> TYPE;
+    public static final StreamCodec<RegistryFriendlyByteBuf, SlideRelayResponsePacket> CODEC;
+
+    static {
+        TYPE = new CustomPacketPayload.Type<>(SlideShow.id("relay_response"));
+        CODEC = StreamCodec.ofMember(SlideRelayResponsePacket::write, SlideRelayResponsePacket::new);
+    }
+
+    private final int requestId;
+    private final Kind kind;
+    private final String eTag;
+    private final String contentType;
+    private final long contentLength;
+    private final byte[] data;
+
+    public enum Kind {
+        MISS, NOT_MODIFIED, HEADER, DATA, END
+    }
+
+    private SlideRelayResponsePacket(int requestId, Kind kind, String eTag, String contentType, long contentLength, byte[] data) {
+        this.requestId = requestId;
+        this.kind = kind;
+        this.eTag = eTag;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.data = data;
+    }
+
+    public static SlideRelayResponsePacket miss(int requestId) {
+        return new SlideRelayResponsePacket(requestId, Kind.MISS, StringUtils.EMPTY, StringUtils.EMPTY, 0L, ArrayUtils.EMPTY_BYTE_ARRAY);
+    }
+
+    public static SlideRelayResponsePacket notModified(int requestId, String eTag) {
+        return new SlideRelayResponsePacket(requestId, Kind.NOT_MODIFIED, eTag, StringUtils.EMPTY, 0L, ArrayUtils.EMPTY_BYTE_ARRAY);
+    }
+
+    public static SlideRelayResponsePacket header(int requestId, String eTag, String contentType, long contentLength) {
+        return new SlideRelayResponsePacket(requestId, Kind.HEADER, eTag, contentType, contentLength, ArrayUtils.EMPTY_BYTE_ARRAY);
+    }
+
+    public static SlideRelayResponsePacket data(int requestId, byte[] data) {
+        return new SlideRelayResponsePacket(requestId, Kind.DATA, StringUtils.EMPTY, StringUtils.EMPTY, 0L, data);
+    }
+
+    public static SlideRelayResponsePacket end(int requestId) {
+        return new SlideRelayResponsePacket(requestId, Kind.END, StringUtils.EMPTY, StringUtils.EMPTY, 0L, ArrayUtils.EMPTY_BYTE_ARRAY);
+    }
+
+    public SlideRelayResponsePacket(RegistryFriendlyByteBuf buf) {
+        this.requestId = buf.readVarInt();
+        this.kind = buf.readEnum(Kind.class);
+        this.eTag = this.kind == Kind.NOT_MODIFIED || this.kind == Kind.HEADER ? buf.readUtf() : StringUtils.EMPTY;
+        this.contentType = this.kind == Kind.HEADER ? buf.readUtf() : StringUtils.EMPTY;
+        this.contentLength = this.kind == Kind.HEADER ? buf.readVarLong() : 0L;
+        this.data = this.kind == Kind.DATA ? buf.readByteArray() : ArrayUtils.EMPTY_BYTE_ARRAY;
+    }
+
+    public void write(RegistryFriendlyByteBuf buf) {
+        buf.writeVarInt(this.requestId);
+        buf.writeEnum(this.kind);
+        switch (this.kind) {
+            case NOT_MODIFIED -> buf.writeUtf(this.eTag);
+            case HEADER -> buf.writeUtf(this.eTag).writeUtf(this.contentType).writeVarLong(this.contentLength);
+            case DATA -> buf.writeByteArray(this.data);
+            case MISS, END -> {
+            }
+        }
+    }
+
+    public int getRequestId() {
+        return this.requestId;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public String getETag() {
+        return this.eTag;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public void handle(IPayloadContext context) {
+        // chunks are handled on the network thread, since the download thread is waiting for them
+        SlideShow.acceptRelayResponse(this);
+    }
+
+    @Override
+    public Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
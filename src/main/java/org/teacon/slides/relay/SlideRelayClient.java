@@ -0,0 +1,209 @@
+package org.teacon.slides.relay;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.client.Minecraft;
+import net.neoforged.api.distmarker.Dist;
+import net.neoforged.bus.api.SubscribeEvent;
+import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.client.event.ClientPlayerNetworkEvent;
+import net.neoforged.neoforge.network.PacketDistributor;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.cache.ImageRelay;
+import org.teacon.slides.network.SlideRelayCancelPacket;
+import org.teacon.slides.network.SlideRelayRequestPacket;
+import org.teacon.slides.network.SlideRelayResponsePacket;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches images from the game server if the server enables the relay. Responses are received on the
+ * network thread, and are passed to the download threads which are waiting for them.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@EventBusSubscriber(bus = EventBusSubscriber.Bus.GAME, value = Dist.CLIENT)
+public final class SlideRelayClient implements ImageRelay {
+    public static final SlideRelayClient INSTANCE = new SlideRelayClient();
+
+    private static final long TIMEOUT_SECONDS = Long.getLong("slideshow.relay.timeoutSeconds", 30L);
+    // marks the end of a body which has been received completely
+    private static final byte[] END = new byte[0];
+    // marks the end of a body which will never be received completely
+    private static final byte[] ABORTED = new byte[0];
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    private SlideRelayClient() {
+    }
+
+    /**
+     * Called on the client thread when the server announces that it relays slide images.
+     */
+    public void enable() {
+        // there is nothing to relay if the server runs in the same game
+        var minecraft = Minecraft.getInstance();
+        var connection = minecraft.getConnection();
+        if (!minecraft.isLocalServer() && connection != null && connection.hasChannel(SlideRelayRequestPacket.TYPE)) {
+            SlideShow.LOGGER.info("Slide images will be relayed by the server");
+            ImageCache.getInstance().setRelay(this);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLeft(ClientPlayerNetworkEvent.LoggingOut event) {
+        ImageCache.getInstance().setRelay(null);
+        INSTANCE.abortAll();
+    }
+
+    @Override
+    public Optional<Response> fetch(URI location, List<String> ifNoneMatch) throws IOException {
+        var requestId = this.nextRequestId.incrementAndGet();
+        var pending = new Pending();
+        this.pending.put(requestId, pending);
+        try {
+            var packet = new SlideRelayRequestPacket(requestId, location.toString(), ifNoneMatch);
+            Minecraft.getInstance().execute(() -> {
+                if (Minecraft.getInstance().getConnection() != null) {
+                    PacketDistributor.sendToServer(packet);
+                } else {
+                    pending.header.complete(SlideRelayResponsePacket.miss(requestId));
+                }
+            });
+            var header = pending.header.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return switch (header.getKind()) {
+                case NOT_MODIFIED -> {
+                    this.pending.remove(requestId);
+                    yield Optional.of(new Response(header.getETag(), header.getContentType(), 0L, null));
+                }
+                case HEADER -> Optional.of(new Response(header.getETag(), header.getContentType(),
+                        header.getContentLength(), new Body(requestId, pending)));
+                default -> {
+                    this.pending.remove(requestId);
+                    yield Optional.empty();
+                }
+            };
+        } catch (InterruptedException e) {
+            this.cancel(requestId);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the relay of " + location);
+        } catch (TimeoutException | ExecutionException e) {
+            this.cancel(requestId);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stops waiting for the response, and tells the server to stop sending it if it has not been completed.
+     */
+    private void cancel(int requestId) {
+        if (this.pending.remove(requestId) != null) {
+            Minecraft.getInstance().execute(() -> {
+                var connection = Minecraft.getInstance().getConnection();
+                if (connection != null && connection.hasChannel(SlideRelayCancelPacket.TYPE)) {
+                    PacketDistributor.sendToServer(new SlideRelayCancelPacket(requestId));
+                }
+            });
+        }
+    }
+
+    public void accept(SlideRelayResponsePacket packet) {
+        var requestId = packet.getRequestId();
+        var pending = this.pending.get(requestId);
+        if (pending != null) {
+            switch (packet.getKind()) {
+                case MISS, NOT_MODIFIED, HEADER -> pending.header.complete(packet);
+                case DATA -> pending.chunks.add(packet.getData());
+                case END -> {
+                    this.pending.remove(requestId);
+                    pending.chunks.add(END);
+                }
+            }
+        }
+    }
+
+    private void abortAll() {
+        for (var it = this.pending.values().iterator(); it.hasNext(); it.remove()) {
+            var pending = it.next();
+            pending.header.completeExceptionally(new IOException("Disconnected from the relay"));
+            pending.chunks.add(ABORTED);
+        }
+    }
+
+    private static final class Pending {
+        private final CompletableFuture<SlideRelayResponsePacket> header = new CompletableFuture<>();
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    }
+
+    private final class Body extends InputStream {
+        private final int requestId;
+        private final Pending pending;
+        private @Nullable byte[] chunk = new byte[0];
+        private int position;
+
+        private Body(int requestId, Pending pending) {
+            this.requestId = requestId;
+            this.pending = pending;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return this.read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (this.chunk != null && this.position >= this.chunk.length) {
+                this.chunk = this.poll();
+                this.position = 0;
+            }
+            if (this.chunk == null) {
+                return -1;
+            }
+            var n = Math.min(len, this.chunk.length - this.position);
+            System.arraycopy(this.chunk, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Nullable
+        private byte[] poll() throws IOException {
+            try {
+                var chunk = this.pending.chunks.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (chunk == null || chunk == ABORTED) {
+                    throw new IOException("Failed to receive the body from the relay");
+                }
+                return chunk == END ? null : chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while receiving the body from the relay");
+            }
+        }
+
+        @Override
+        public void close() {
+            // the body may be closed before the end (e.g. the download has been cancelled), and the
+            // remaining chunks which are still on the way are dropped as soon as they arrive
+            SlideRelayClient.this.cancel(this.requestId);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.teacon.slides.relay;
+
+import com.google.common.hash.Hashing;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.server.level.ServerPlayer;
+import net.neoforged.bus.api.SubscribeEvent;
+import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.event.entity.player.PlayerEvent;
+import net.neoforged.neoforge.event.server.ServerStartingEvent;
+import net.neoforged.neoforge.event.server.ServerStoppedEvent;
+import net.neoforged.neoforge.event.tick.ServerTickEvent;
+import net.neoforged.neoforge.network.PacketDistributor;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.cache.ImageBytes;
+import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.network.SlideRelayEnabledPacket;
+import org.teacon.slides.network.SlideRelayResponsePacket;
+import org.teacon.slides.url.ProjectorURL;
+import org.teacon.slides.url.ProjectorURLSavedData;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays slide images to the clients, so that every image is fetched from its origin by the server once,
+ * rather than by every client. Images are kept in the content addressed cache of the server, which is
+ * separated from the cache of the client, and bodies are sent in chunks which are paced both per player
+ * and for all the players, so that large images never flood the connections.
+ * <p>
+ * Only the urls which are known to the server and are not blocked are relayed, and the relay is disabled
+ * unless the server is started with {@code -Dslideshow.relay.enabled=true}. Transfers are only changed on
+ * the server thread, and clients cancel the transfers which they no longer need.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@EventBusSubscriber(bus = EventBusSubscriber.Bus.GAME)
+public final class SlideRelayServer {
+    public static final boolean ENABLED = Boolean.getBoolean("slideshow.relay.enabled");
+
+    private static final int CHUNK_SIZE = 1 << 15; // 32 KiB
+    private static final int BYTES_PER_TICK = Integer.getInteger("slideshow.relay.bytesPerTick", 1 << 18); // 5 MiB/s
+    private static final int GLOBAL_BYTES_PER_TICK =
+            Integer.getInteger("slideshow.relay.globalBytesPerTick", 1 << 20); // 20 MiB/s
+    private static final long REVALIDATE_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("slideshow.relay.revalidateSeconds", 60L)); // 1min
+
+    private static final Map<UUID, Session> sSessions = new ConcurrentHashMap<>();
+    private static final Map<ProjectorURL, Long> sValidatedAt = new ConcurrentHashMap<>();
+    // players served first take turns, so that nobody starves when the global budget runs out
+    private static int sRotation;
+
+    private SlideRelayServer() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Handles a request on the server thread. The response is sent in the following ticks.
+     */
+    public static void request(ServerPlayer player, int requestId, String url, List<String> ifNoneMatch) {
+        var location = (ProjectorURL) null;
+        try {
+            location = new ProjectorURL(url);
+        } catch (IllegalArgumentException ignored) {
+            // invalid urls are never relayed
+        }
+        var server = player.getServer();
+        var data = ProjectorURLSavedData.get(server);
+        var known = location != null && data.getIdByUrl(location).filter(id -> !data.isUrlBlocked(id)).isPresent();
+        var playerId = player.getUUID();
+        var session = sSessions.computeIfAbsent(playerId, k -> new Session());
+        if (!ENABLED || !known) {
+            session.transfers.add(Transfer.miss(requestId));
+            return;
+        }
+        var relayed = location;
+        var fetch = fetch(relayed);
+        session.fetching.put(requestId, fetch);
+        fetch.whenComplete((bytes, throwable) -> server.execute(() -> {
+            // the request has been cancelled, or the player has left before the image is ready
+            if (!session.fetching.remove(requestId, fetch) || sSessions.get(playerId) != session) {
+                if (bytes != null) {
+                    bytes.close();
+                }
+            } else if (throwable != null) {
+                SlideShow.LOGGER.debug("Failed to relay {}", relayed, throwable);
+                session.transfers.add(Transfer.miss(requestId));
+            } else {
+                // relayed images are tagged by their content, so that the tag changes if and only if the content changes
+                @SuppressWarnings("deprecation")
+                var hash = bytes.contentHash() != null ? bytes.contentHash() : Hashing.sha1().hashBytes(bytes.buffer().duplicate());
+                var eTag = "\"" + hash + "\"";
+                var notModified = ifNoneMatch.contains(eTag) || ifNoneMatch.contains("*");
+                session.transfers.add(new Transfer(requestId, bytes, eTag, notModified));
+            }
+        }));
+    }
+
+    /**
+     * Handles a cancellation on the server thread, after which nothing of the request is sent any longer.
+     */
+    public static void cancel(ServerPlayer player, int requestId) {
+        var session = sSessions.get(player.getUUID());
+        if (session != null) {
+            var fetch = session.fetching.remove(requestId);
+            if (fetch != null) {
+                fetch.cancel(false);
+            }
+            session.transfers.removeIf(transfer -> {
+                if (transfer.requestId == requestId) {
+                    transfer.close();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    private static CompletableFuture<ImageBytes> fetch(ProjectorURL location) {
+        // the origin is contacted at most once in a while, and the cached image is used meanwhile
+        var cache = ImageCache.getRelayInstance();
+        var validatedAt = sValidatedAt.get(location);
+        if (validatedAt != null && System.currentTimeMillis() - validatedAt < REVALIDATE_MILLIS) {
+            return cache.getResource(location.toUrl(), false).exceptionallyCompose(t -> fetchOnline(location));
+        }
+        return fetchOnline(location);
+    }
+
+    private static CompletableFuture<ImageBytes> fetchOnline(ProjectorURL location) {
+        return ImageCache.getRelayInstance().getResource(location.toUrl(), true).thenApply(bytes -> {
+            sValidatedAt.put(location, System.currentTimeMillis());
+            return bytes;
+        });
+    }
+
+    @SubscribeEvent
+    public static void onServerStarting(ServerStartingEvent event) {
+        if (ENABLED) {
+            // the storage is loaded before any player joins, rather than when the first image is requested
+            ImageCache.getRelayInstance();
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(ServerTickEvent.Post event) {
+        var playerList = event.getServer().getPlayerList();
+        var sending = new ArrayList<Map.Entry<UUID, Session>>(sSessions.size());
+        for (var it = sSessions.entrySet().iterator(); it.hasNext(); ) {
+            var entry = it.next();
+            if (playerList.getPlayer(entry.getKey()) == null) {
+                entry.getValue().close();
+                it.remove();
+            } else if (!entry.getValue().transfers.isEmpty()) {
+                sending.add(entry);
+            }
+        }
+        if (sending.isEmpty()) {
+            return;
+        }
+        // the global budget is shared evenly, while every player is still limited by its own budget
+        var globalBudget = GLOBAL_BYTES_PER_TICK;
+        var share = Math.min(BYTES_PER_TICK, Math.max(CHUNK_SIZE, GLOBAL_BYTES_PER_TICK / sending.size()));
+        sRotation = (sRotation + 1) % sending.size();
+        Collections.rotate(sending, sRotation);
+        for (var entry : sending) {
+            var player = Objects.requireNonNull(playerList.getPlayer(entry.getKey()));
+            var budget = Math.min(share, globalBudget);
+            if (budget <= 0) {
+                break;
+            }
+            globalBudget -= budget - entry.getValue().send(player, budget);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        if (ENABLED && event.getEntity() instanceof ServerPlayer player
+                && player.connection.hasChannel(SlideRelayEnabledPacket.TYPE)) {
+            PacketDistributor.sendToPlayer(player, SlideRelayEnabledPacket.INSTANCE);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        var session = sSessions.remove(event.getEntity().getUUID());
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerStopped(ServerStoppedEvent event) {
+        sSessions.values().forEach(Session::close);
+        sSessions.clear();
+        sValidatedAt.clear();
+    }
+
+    private static final class Session {
+        private final Queue<Transfer> transfers = new ArrayDeque<>();
+        private final Map<Integer, CompletableFuture<ImageBytes>> fetching = new ConcurrentHashMap<>();
+
+        /**
+         * @return the remaining budget
+         */
+        private int send(ServerPlayer player, int budget) {
+            for (var transfer = this.transfers.peek(); transfer != null; transfer = this.transfers.peek()) {
+                budget = transfer.send(player, budget);
+                if (!transfer.isDone()) {
+                    break;
+                }
+                this.transfers.poll();
+                transfer.close();
+            }
+            return budget;
+        }
+
+        private void close() {
+            this.fetching.values().forEach(fetch -> fetch.cancel(false));
+            this.fetching.clear();
+            this.transfers.forEach(Transfer::close);
+            this.transfers.clear();
+        }
+    }
+
+    private static final class Transfer {
+        private final int requestId;
+        private final @Nullable ImageBytes bytes;
+        private final String eTag;
+        private final boolean notModified;
+        private int position = -1;
+        private boolean done;
+
+        private Transfer(int requestId, @Nullable ImageBytes bytes, String eTag, boolean notModified) {
+            this.requestId = requestId;
+            this.bytes = bytes;
+            this.eTag = eTag;
+            this.notModified = notModified;
+        }
+
+        private static Transfer miss(int requestId) {
+            return new Transfer(requestId, null, "", false);
+        }
+
+        private boolean isDone() {
+            return this.done;
+        }
+
+        /**
+         * @return the remaining budget
+         */
+        private int send(ServerPlayer player, int budget) {
+            if (this.bytes == null) {
+                PacketDistributor.sendToPlayer(player, SlideRelayResponsePacket.miss(this.requestId));
+                this.done = true;
+                return budget;
+            }
+            if (this.notModified) {
+                PacketDistributor.sendToPlayer(player, SlideRelayResponsePacket.notModified(this.requestId, this.eTag));
+                this.done = true;
+                return budget;
+            }
+            var buffer = this.bytes.buffer();
+            if (this.position < 0) {
+                var contentType = this.bytes.format().getMimeType();
+                var header = SlideRelayResponsePacket.header(this.requestId, this.eTag, contentType, buffer.remaining());
+                PacketDistributor.sendToPlayer(player, header);
+                this.position = 0;
+            }
+            while (budget > 0 && this.position < buffer.remaining()) {
+                var chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining() - this.position)];
+                buffer.get(buffer.position() + this.position, chunk);
+                PacketDistributor.sendToPlayer(player, SlideRelayResponsePacket.data(this.requestId, chunk));
+                this.position += chunk.length;
+                budget -= chunk.length;
+            }
+            if (this.position >= buffer.remaining()) {
+                PacketDistributor.sendToPlayer(player, SlideRelayResponsePacket.end(this.requestId));
+                this.done = true;
+            }
+            return budget;
+        }
+
+        private void close() {
+            if (this.bytes != null) {
+                this.bytes.close();
+            }
+        }
+    }
+}
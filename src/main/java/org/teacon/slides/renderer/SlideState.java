@@ -12,6 +12,7 @@ import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.inventory.AbstractContainerMenu;
@@ -26,8 +27,13 @@ import org.lwjgl.system.MemoryUtil;
 import org.teacon.slides.ModRegistries;
 import org.teacon.slides.SlideShow;
 import org.teacon.slides.block.ProjectorBlockEntity;
+import org.teacon.slides.cache.CacheMetrics;
+import org.teacon.slides.cache.ImageBytes;
 import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.cache.ImageFormat;
+import org.teacon.slides.cache.PixelCache;
 import org.teacon.slides.network.SlideURLRequestPacket;
+import org.teacon.slides.slide.ImageSlide;
 import org.teacon.slides.slide.Slide;
 import org.teacon.slides.texture.*;
 import org.teacon.slides.url.ProjectorURL;
@@ -37,12 +43,14 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import static org.lwjgl.opengl.GL11C.*;
 
@@ -65,8 +73,7 @@ public final class SlideState {
     private static final int RETRY_INTERVAL_SECONDS = 30; // 30s
     private static long sAnimationTick = 0L;
 
-    private static final int CLEANER_INTERVAL_SECONDS = 720; // 12min
-    private static int sCleanerTimer = 0;
+    private static volatile boolean sMetricsOverlay = false;
 
     private static final AtomicReference<ConcurrentHashMap<ProjectorURL, SlideState>> sCache;
 
@@ -84,6 +91,7 @@ public final class SlideState {
 
     @SubscribeEvent
     public static void onPlayerLeft(ClientPlayerNetworkEvent.LoggingOut event) {
+        ImageCache.getInstance().cancelDownloads();
         RenderSystem.recordRenderCall(SlideState::clear);
     }
 
@@ -91,9 +99,23 @@ public final class SlideState {
     public static void onDebugTextCollection(CustomizeGuiOverlayEvent.DebugText event) {
         if (!Minecraft.getInstance().options.reducedDebugInfo().get()) {
             event.getLeft().add(SlideState.getDebugText());
+            // the cache is never created here, since creating it loads the whole storage on the render thread
+            var cache = ImageCache.getInstanceIfCreated();
+            if (sMetricsOverlay && cache != null) {
+                cache.getMetrics().dump(cache).forEach(line -> event.getLeft().add("SlideShow " + line));
+            }
         }
     }
 
+    /**
+     * Toggles whether all the metrics are shown in the debug overlay.
+     *
+     * @return whether all the metrics are shown after toggling
+     */
+    public static boolean toggleMetricsOverlay() {
+        return sMetricsOverlay = !sMetricsOverlay;
+    }
+
     private static void tick(AbstractContainerMenu opening, boolean paused) {
         // send url requests
         var blockPosSet = tickBlockPosRequests();
@@ -109,13 +131,6 @@ public final class SlideState {
             if (!map.isEmpty()) {
                 RENDER_EXECUTOR.execute(() -> map.entrySet().removeIf(e -> e.getValue().update(e.getKey())));
             }
-            if (++sCleanerTimer > CLEANER_INTERVAL_SECONDS) {
-                var n = ImageCache.getInstance().cleanResources();
-                if (n != 0) {
-                    SlideShow.LOGGER.debug("Cleanup {} http cache image resources", n);
-                }
-                sCleanerTimer = 0;
-            }
         }
     }
 
@@ -160,8 +175,10 @@ public final class SlideState {
         sBlockPending.clear();
         var map = sCache.getAndSet(new ConcurrentHashMap<>());
         map.values().forEach(s -> {
+            s.cancelRevalidation();
             s.mSlide.close();
             s.mState = State.TIMEOUT;
+            s.mRequestCounter += 1;
             s.mSlide = Slide.failed();
         });
         SlideShow.LOGGER.debug("Release {} slide images", map.size());
@@ -175,7 +192,19 @@ public final class SlideState {
             cpuSize += state.mSlide.getCPUMemorySize();
             gpuSize += state.mSlide.getGPUMemorySize();
         }
-        return "SlideShow Cache: " + map.size() + " (CPU=" + (cpuSize >> 20) + "MiB, GPU=" + (gpuSize >> 20) + "MiB)";
+        var memory = "SlideShow Cache: " + map.size() + " (CPU=" + (cpuSize >> 20) + "MiB, " +
+                "GPU=" + (gpuSize >> 20) + "MiB";
+        var cache = ImageCache.getInstanceIfCreated();
+        if (cache == null) {
+            return memory + ")";
+        }
+        var metrics = cache.getMetrics();
+        return memory + ", " +
+                "Coalesced=" + metrics.getRequests(CacheMetrics.Source.MEMORY).getCount() + "/" +
+                metrics.getRequestCount() + ", " +
+                "Downloads=" + cache.getActiveDownloadCount() + "+" + cache.getQueuedDownloadCount() + ", " +
+                "Connections=" + cache.getActiveConnectionCount() + "+" + cache.getQueuedConnectionCount() + ", " +
+                "Received=" + (cache.getReceivedBytes() >> 20) + "MiB)";
     }
 
     public static long getAnimationTick() {
@@ -225,6 +254,7 @@ public final class SlideState {
     private int mRecycleCounter;
     private int mRequestCounter;
     private boolean mFetchedAfterUpdate;
+    private @Nullable CompletableFuture<?> mRevalidation;
 
     private SlideState(ProjectorURL location) {
         mState = State.INITIAL;
@@ -237,37 +267,64 @@ public final class SlideState {
 
     private void refresh(ProjectorURL location) {
         var requestCounter = mRequestCounter;
-        ImageCache.getInstance()
-                .getResource(location.toUrl(), true)
-                .thenCompose(SlideState::createTexture)
-                .whenCompleteAsync((textureProvider, throwable) -> {
+        // a slide which already has a texture only needs to know whether the image has been changed
+        Function<ImageBytes, CompletableFuture<?>> stale =
+                mSlide instanceof ImageSlide ? null : bytes -> this.refreshStale(requestCounter, bytes);
+        // a superseded revalidation is cancelled, so that its download does not compete with the new one
+        this.cancelRevalidation();
+        var revalidation = ImageCache.getInstance().revalidate(location.toUrl(), stale);
+        mRevalidation = revalidation;
+        revalidation
+                // the future may be completed on the render thread, where images should never be decoded
+                .thenComposeAsync(bytesOptional -> bytesOptional.isPresent()
+                        ? SlideState.createTexture(bytesOptional.get()).thenApply(Optional::of)
+                        : CompletableFuture.completedFuture(Optional.<TextureProvider>empty()),
+                        Util.backgroundExecutor())
+                .whenCompleteAsync((textureOptional, throwable) -> {
                     if (requestCounter == mRequestCounter) {
-                        if (mState == State.INITIAL) {
+                        var hasTexture = mSlide instanceof ImageSlide;
+                        if (textureOptional != null && (textureOptional.isPresent() || hasTexture)) {
+                            // keep the current texture if the image is unchanged
+                            textureOptional.ifPresent(textureProvider -> {
+                                mSlide.close();
+                                mSlide = Slide.make(textureProvider);
+                            });
+                            mState = State.SUCCESS;
+                            mRecycleCounter += RECYCLE_SECONDS - RETRY_INTERVAL_SECONDS;
+                        } else if (hasTexture) {
+                            mState = State.OFFLINE;
+                        } else {
                             mSlide.close();
                             mState = State.FAILURE;
                             mSlide = Slide.failed();
                         }
-                        if (textureProvider != null) {
-                            mSlide.close();
-                            mState = State.SUCCESS;
-                            mSlide = Slide.make(textureProvider);
-                            mRecycleCounter += RECYCLE_SECONDS - RETRY_INTERVAL_SECONDS;
-                        }
                         mRequestCounter = requestCounter + 1;
+                    } else if (textureOptional != null) {
+                        textureOptional.ifPresent(TextureProvider::close);
                     }
                 }, RENDER_EXECUTOR);
-        ImageCache.getInstance()
-                .getResource(location.toUrl(), false)
-                .thenCompose(SlideState::createTexture)
-                .whenCompleteAsync((textureProvider, throwable) -> {
-                    if (requestCounter == mRequestCounter) {
-                        if (textureProvider != null) {
-                            mSlide.close();
-                            mState = State.OFFLINE;
-                            mSlide = Slide.make(textureProvider);
-                        }
-                    }
-                }, RENDER_EXECUTOR);
+    }
+
+    private void cancelRevalidation() {
+        var revalidation = mRevalidation;
+        mRevalidation = null;
+        if (revalidation != null) {
+            revalidation.cancel(false);
+        }
+    }
+
+    private CompletableFuture<?> refreshStale(int requestCounter, ImageBytes bytes) {
+        return SlideState.createTexture(bytes).whenCompleteAsync((textureProvider, throwable) -> {
+            if (textureProvider != null) {
+                if (requestCounter == mRequestCounter) {
+                    mSlide.close();
+                    mState = State.OFFLINE;
+                    mSlide = Slide.make(textureProvider);
+                } else {
+                    textureProvider.close();
+                }
+            }
+        }, RENDER_EXECUTOR);
     }
 
     private Slide fetch() {
@@ -282,6 +339,9 @@ public final class SlideState {
      */
     private boolean update(ProjectorURL location) {
         var requestCounter = mRequestCounter;
+        if (mFetchedAfterUpdate) {
+            SlideWarmup.touch(location);
+        }
         if (--mRecycleCounter >= 0) {
             mFetchedAfterUpdate = false;
             return false;
@@ -294,8 +354,10 @@ public final class SlideState {
             refresh(location);
             return false;
         }
+        this.cancelRevalidation();
         mSlide.close();
         mState = State.TIMEOUT;
+        mRequestCounter = requestCounter + 1;
         mSlide = Slide.failed();
         return true;
     }
@@ -308,39 +370,61 @@ public final class SlideState {
     }
 
     /**
-     * Decode image and create texture.
+     * Decode image and create texture. The bytes are closed as soon as they are no longer needed,
+     * which is after decoding, or when the texture is closed if the image is animated.
      *
-     * @param nameDataEntry image file name & compressed image data
+     * @param bytes image file name & compressed image data (usually mapped from the cache file)
      * @return texture
      */
-    private static CompletableFuture<TextureProvider> createTexture(Map.Entry<String, byte[]> nameDataEntry) {
-        var name = nameDataEntry.getKey();
-        var data = nameDataEntry.getValue();
+    private static CompletableFuture<TextureProvider> createTexture(ImageBytes bytes) {
+        var name = bytes.name();
+        var data = bytes.buffer();
+        var contentHash = bytes.contentHash();
+        var pixelCache = ImageCache.getInstance().getPixelCache();
+        var metrics = ImageCache.getInstance().getMetrics();
         var future = new CompletableFuture<TextureProvider>();
-        var isGif = name.endsWith(".gif") || GIFDecoder.checkMagic(data);
-        var isWebP = name.endsWith(".webp") || WebPDecoder.checkMagic(data);
+        var isGif = bytes.format() == ImageFormat.GIF;
+        var cachedPixels = isGif || contentHash == null
+                ? Optional.<PixelCache.Pixels>empty() : pixelCache.load(contentHash);
         if (isGif) {
             RenderSystem.recordRenderCall(() -> {
                 try {
                     // TODO: decode GIFs asynchronously
-                    future.complete(new AnimatedTextureProvider(name, data));
-                } catch (IOException e) {
+                    var startNanos = System.nanoTime();
+                    // the decoder keeps reading the data, so that the bytes are closed with the texture
+                    future.complete(new AnimatedTextureProvider(name, data, bytes::close));
+                    metrics.recordUpload(System.nanoTime() - startNanos);
+                } catch (Throwable e) {
+                    bytes.close();
+                    future.completeExceptionally(e);
+                }
+            });
+        } else if (cachedPixels.isPresent()) {
+            // decoded pixels are mapped from the pixel cache, so that there is nothing to decode
+            var pixels = cachedPixels.get();
+            bytes.close();
+            RenderSystem.recordRenderCall(() -> {
+                try {
+                    var startNanos = System.nanoTime();
+                    future.complete(new StaticTextureProvider(name,
+                            pixels.width(), pixels.height(), pixels.buffer(), pixels.swizzle()));
+                    metrics.recordUpload(System.nanoTime() - startNanos);
+                } catch (Throwable e) {
                     future.completeExceptionally(e);
                 }
             });
         } else {
             // color swizzle for web usage
             var rgba = new int[]{GL_RED, GL_GREEN, GL_BLUE, GL_ALPHA};
-            // copy to native memory if it is not webp
-            var buffer = isWebP ? MemoryUtil.memAlloc(0) : MemoryUtil.memAlloc(data.length).put(data).rewind();
-            try {
-                // convert to RGBA
+            try (bytes) {
                 // noinspection resource
-                var image = isWebP ? WebPDecoder.toNativeImage(data, rgba) : NativeImage.read(buffer);
+                var image = SlideState.decode(bytes, rgba);
                 RenderSystem.recordRenderCall(() -> {
                     // noinspection TryFinallyCanBeTryWithResources
                     try {
+                        var startNanos = System.nanoTime();
                         future.complete(new StaticTextureProvider(name, image, rgba));
+                        metrics.recordUpload(System.nanoTime() - startNanos);
                     } catch (Throwable e) {
                         future.completeExceptionally(e);
                     } finally {
@@ -349,13 +433,57 @@ public final class SlideState {
                 });
             } catch (IOException e) {
                 future.completeExceptionally(e);
-            } finally {
-                MemoryUtil.memFree(buffer);
             }
         }
         return future;
     }
 
+    /**
+     * Decodes the image into the pixel cache without creating any texture, so that the texture
+     * could be created later without decoding. Animated images are not decoded. The bytes are closed.
+     */
+    static void predecode(ImageBytes bytes) {
+        var contentHash = bytes.contentHash();
+        var pixelCache = ImageCache.getInstance().getPixelCache();
+        try (bytes) {
+            if (bytes.format() != ImageFormat.GIF && contentHash != null && !pixelCache.contains(contentHash)) {
+                var rgba = new int[]{GL_RED, GL_GREEN, GL_BLUE, GL_ALPHA};
+                // noinspection EmptyTryBlock
+                try (var ignored = SlideState.decode(bytes, rgba)) {
+                    // the decoded pixels have been saved in the pixel cache
+                } catch (IOException e) {
+                    SlideShow.LOGGER.debug("Failed to decode image {} in advance", bytes.name(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the image, and saves the decoded pixels in the pixel cache if possible.
+     *
+     * @param bytes image file name & compressed image data
+     * @param rgba  color swizzle, which may be changed by the decoder
+     * @return decoded image, which should be closed by the caller
+     */
+    private static NativeImage decode(ImageBytes bytes, int[] rgba) throws IOException {
+        var data = bytes.buffer();
+        var contentHash = bytes.contentHash();
+        var metrics = ImageCache.getInstance().getMetrics();
+        var decodeStartNanos = System.nanoTime();
+        // convert to RGBA, the direct buffer is read by the decoder without any copy
+        var image = bytes.format() == ImageFormat.WEBP ? WebPDecoder.toNativeImage(data, rgba) : NativeImage.read(data);
+        metrics.recordDecode(System.nanoTime() - decodeStartNanos);
+        var width = image.getWidth();
+        var height = image.getHeight();
+        var cacheable = width <= TextureProvider.MAX_TEXTURE_SIZE && height <= TextureProvider.MAX_TEXTURE_SIZE;
+        if (contentHash != null && cacheable && image.format() == NativeImage.Format.RGBA) {
+            var buffer = MemoryUtil.memByteBuffer(image.pixels, (int) image.size);
+            var pixelCache = ImageCache.getInstance().getPixelCache();
+            pixelCache.save(contentHash, new PixelCache.Pixels(width, height, buffer, rgba));
+        }
+        return image;
+    }
+
     public enum State {
         /**
          * INITIAL: a slide which has never been loaded yet.
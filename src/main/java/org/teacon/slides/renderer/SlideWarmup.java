@@ -0,0 +1,119 @@
+package org.teacon.slides.renderer;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.Util;
+import net.minecraft.client.Minecraft;
+import net.neoforged.api.distmarker.Dist;
+import net.neoforged.bus.api.SubscribeEvent;
+import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.client.event.ClientPlayerNetworkEvent;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.cache.HotSet;
+import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.url.ProjectorURL;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the slides used in each server, and warms up the cache with them the next time joining
+ * the same server. Warming up revalidates the images one by one in the background, and decodes them
+ * into the pixel cache, so that they are ready before the player reaches the projectors.
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@EventBusSubscriber(bus = EventBusSubscriber.Bus.GAME, value = Dist.CLIENT)
+public final class SlideWarmup {
+    private static final int MAX_ENTRIES = Integer.getInteger("slideshow.warmup.maxEntries", 256);
+
+    private static final AtomicInteger sSession = new AtomicInteger();
+    private static volatile @Nullable HotSet sHotSet;
+
+    private SlideWarmup() {
+        throw new UnsupportedOperationException();
+    }
+
+    @SubscribeEvent
+    public static void onPlayerJoined(ClientPlayerNetworkEvent.LoggingIn event) {
+        var server = getServerName(Minecraft.getInstance());
+        if (server == null) {
+            return;
+        }
+        var session = sSession.incrementAndGet();
+        CompletableFuture.runAsync(() -> {
+            try {
+                var hotSet = ImageCache.getInstance().loadHotSet(server);
+                if (session == sSession.get()) {
+                    sHotSet = hotSet;
+                    var urls = hotSet.getHottest(MAX_ENTRIES);
+                    SlideShow.LOGGER.debug("Warming up {} slide image(s) used in {}", urls.size(), server);
+                    warmup(session, urls.iterator());
+                }
+            } catch (IOException e) {
+                SlideShow.LOGGER.warn("Failed to load the slide images used in {}", server, e);
+            }
+        }, Util.ioPool());
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLeft(ClientPlayerNetworkEvent.LoggingOut event) {
+        sSession.incrementAndGet();
+        var hotSet = sHotSet;
+        sHotSet = null;
+        if (hotSet != null) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    hotSet.save(MAX_ENTRIES);
+                } catch (IOException e) {
+                    SlideShow.LOGGER.warn("Failed to save the slide images used in {}", hotSet.getServer(), e);
+                }
+            }, Util.ioPool());
+        }
+    }
+
+    static void touch(ProjectorURL location) {
+        var hotSet = sHotSet;
+        if (hotSet != null) {
+            hotSet.touch(location.toString());
+        }
+    }
+
+    /**
+     * Warms up the images one by one, and stops as soon as the session ends.
+     */
+    private static void warmup(int session, Iterator<String> urls) {
+        while (urls.hasNext() && session == sSession.get()) {
+            ProjectorURL location;
+            try {
+                location = new ProjectorURL(urls.next());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (!SlideShow.checkBlock(location).isBlocked()) {
+                ImageCache.getInstance().getResource(location.toUrl(), true)
+                        .thenAcceptAsync(SlideState::predecode, Util.backgroundExecutor())
+                        .whenComplete((v, t) -> warmup(session, urls));
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private static String getServerName(Minecraft minecraft) {
+        var serverData = minecraft.getCurrentServer();
+        if (serverData != null) {
+            return serverData.ip;
+        }
+        var singleplayerServer = minecraft.getSingleplayerServer();
+        if (singleplayerServer != null) {
+            return "singleplayer:" + singleplayerServer.getWorldData().getLevelName();
+        }
+        return null;
+    }
+}
@@ -23,6 +23,8 @@ public final class AnimatedTextureProvider implements TextureProvider {
     private static final LZWDecoder gRenderThreadDecoder = new LZWDecoder();
 
     private final GIFDecoder mDecoder;
+    private final Runnable mDataRelease;
+    private boolean mDataReleased;
 
     private int mTexture;
     private final SlideRenderType mRenderType;
@@ -36,9 +38,15 @@ public final class AnimatedTextureProvider implements TextureProvider {
 
     private final int mCPUMemorySize;
 
-    public AnimatedTextureProvider(String name, byte[] data) throws IOException {
+    /**
+     * @param data        the compressed image data, which is read by the decoder until the provider is closed
+     * @param dataRelease called once when the provider is closed (even if the constructor fails)
+     */
+    public AnimatedTextureProvider(String name, ByteBuffer data, Runnable dataRelease) throws IOException {
+        mDataRelease = dataRelease;
         try {
-            mDecoder = new GIFDecoder(ByteBuffer.wrap(data), gRenderThreadDecoder);
+            // the data may be mapped from a file directly, and the decoder reads it without any copy
+            mDecoder = new GIFDecoder(data.duplicate(), gRenderThreadDecoder);
             final int width = mDecoder.getScreenWidth();
             final int height = mDecoder.getScreenHeight();
             if (width > MAX_TEXTURE_SIZE || height > MAX_TEXTURE_SIZE) {
@@ -46,7 +54,7 @@ public final class AnimatedTextureProvider implements TextureProvider {
             }
 
             // COMPRESSED + HEAP (4) + NATIVE (4) + INDEX (1)
-            mCPUMemorySize = data.length + (width * height * (4 + 4 + 1));
+            mCPUMemorySize = data.remaining() + (width * height * (4 + 4 + 1));
 
             mFrame = MemoryUtil.memAlloc(width * height * 4);
             mFrameDelayTime = mDecoder.decodeNextFrame(mFrame);
@@ -138,5 +146,9 @@ public final class AnimatedTextureProvider implements TextureProvider {
         mTexture = 0;
         MemoryUtil.memFree(mFrame);
         mFrame = null;
+        if (!mDataReleased) {
+            mDataReleased = true;
+            mDataRelease.run();
+        }
     }
 }
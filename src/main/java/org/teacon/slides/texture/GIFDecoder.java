@@ -80,12 +80,6 @@ public final class GIFDecoder {
         mHeaderPos = mBuf.position();
     }
 
-    public static boolean checkMagic(@Nonnull byte[] buf) {
-        return buf.length >= 6 &&
-                buf[0] == 'G' && buf[1] == 'I' && buf[2] == 'F' &&
-                buf[3] == '8' && (buf[4] == '7' || buf[4] == '9') && buf[5] == 'a';
-    }
-
     public int getScreenWidth() {
         return mScreenWidth;
     }
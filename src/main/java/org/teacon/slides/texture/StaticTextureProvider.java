@@ -4,12 +4,14 @@ import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.platform.NativeImage;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
+import org.lwjgl.system.MemoryUtil;
 import org.teacon.slides.renderer.SlideRenderType;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.GL11C.*;
@@ -29,9 +31,27 @@ public final class StaticTextureProvider implements TextureProvider {
     private final int mWidth, mHeight;
 
     public StaticTextureProvider(String name, NativeImage image, @Nullable int[] rgbaSwizzle) throws IOException {
+        // the image is closed by the caller
+        this(name, image.getWidth(), image.getHeight(), image.pixels, rgbaSwizzle);
+    }
+
+    public StaticTextureProvider(String name, int width, int height,
+                                 ByteBuffer pixels, @Nullable int[] rgbaSwizzle) throws IOException {
+        this(name, width, height, checkSize(width, height, pixels), rgbaSwizzle);
+    }
+
+    private static long checkSize(int width, int height, ByteBuffer pixels) throws IOException {
+        if (pixels.remaining() < 4L * width * height) {
+            throw new IOException("Pixels are too few: " + pixels.remaining() + " bytes for " + width + "x" + height);
+        }
+        return MemoryUtil.memAddress(pixels);
+    }
+
+    private StaticTextureProvider(String name, int width, int height,
+                                  long pixels, @Nullable int[] rgbaSwizzle) throws IOException {
         try {
-            mWidth = image.getWidth();
-            mHeight = image.getHeight();
+            mWidth = width;
+            mHeight = height;
             if (mWidth > MAX_TEXTURE_SIZE || mHeight > MAX_TEXTURE_SIZE) {
                 throw new IOException("Image is too big: " + mWidth + "x" + mHeight);
             }
@@ -63,12 +83,10 @@ public final class StaticTextureProvider implements TextureProvider {
             glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
             glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
-            try (image) {
-                glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, image.pixels);
-                if (rgbaSwizzle != null) {
-                    // rearrange argb / 0rgb to rgba
-                    glTexParameteriv(GL_TEXTURE_2D, GL_TEXTURE_SWIZZLE_RGBA, rgbaSwizzle);
-                }
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+            if (rgbaSwizzle != null) {
+                // rearrange argb / 0rgb to rgba
+                glTexParameteriv(GL_TEXTURE_2D, GL_TEXTURE_SWIZZLE_RGBA, rgbaSwizzle);
             }
 
             // auto generate mipmap
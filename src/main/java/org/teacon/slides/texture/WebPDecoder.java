@@ -2,14 +2,14 @@ package org.teacon.slides.texture;
 
 import com.luciad.imageio.webp.WebPReadParam;
 import com.mojang.blaze3d.platform.NativeImage;
-import org.apache.commons.lang3.ArrayUtils;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
 import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.Nonnull;
 import javax.imageio.ImageIO;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -18,20 +18,8 @@ import java.util.Objects;
 import static org.lwjgl.opengl.GL11C.*;
 
 public final class WebPDecoder {
-    public static boolean checkMagic(@Nonnull byte[] buf) {
-        if (buf.length >= 12) {
-            var wr = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
-            var riff = wr.getInt() == 0x46464952; // RIFF in LITTLE ENDIAN
-            var size = wr.getInt() == buf.length - 8; // SIZE - 8 of image
-            var webp = wr.getInt() == 0x50424557; // WEBP in LITTLE ENDIAN
-            var vp8_ = ArrayUtils.contains(new int[]{0x58385056, 0x4C385056, 0x20385056}, wr.getInt()); // VP8[XL\x20] in LITTLE ENDIAN;
-            return riff && size && webp && vp8_;
-        }
-        return false;
-    }
-
-    public static NativeImage toNativeImage(@Nonnull byte[] buf, int[] rgbaSwizzle) throws IOException {
-        try (var stream = new ByteArrayInputStream(buf)) {
+    public static NativeImage toNativeImage(@Nonnull ByteBuffer buf, int[] rgbaSwizzle) throws IOException {
+        try (var stream = new ByteBufInputStream(Unpooled.wrappedBuffer(buf.duplicate()))) {
             try (var imageStream = ImageIO.createImageInputStream(stream)) {
                 var readParam = new WebPReadParam();
                 readParam.setBypassFiltering(true);
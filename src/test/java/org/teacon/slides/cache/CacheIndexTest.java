@@ -0,0 +1,177 @@
+package org.teacon.slides.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheIndexTest {
+
+    @TempDir
+    Path parentPath;
+
+    private Path tempPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.tempPath = Files.createDirectories(this.parentPath.resolve("tmp"));
+    }
+
+    private CacheStorage.StoredEntry createStoredEntry(int i) {
+        var headers = new Header[]{
+                new BasicHeader(HttpHeaders.CONTENT_TYPE, "image/png"),
+                new BasicHeader(HttpHeaders.ETAG, "\"v" + i + "\"")};
+        var statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        var path = this.parentPath.resolve(String.format("%040x.png", i));
+        var entry = new HttpCacheEntry(new Date(1_000_000L + i), new Date(2_000_000L + i), statusLine,
+                headers, new ContentFileResource(path.toFile()), Map.of("{Accept}", "variant-" + i));
+        return new CacheStorage.StoredEntry(path, entry, 100L + i, 3_000_000L + i);
+    }
+
+    private static String key(int i) {
+        return "https://example.com/slide-" + i + ".png";
+    }
+
+    private static void assertStoredEquals(CacheStorage.StoredEntry expected, CacheStorage.StoredEntry actual) {
+        assertEquals(expected.path(), actual.path());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.lastAccess().get(), actual.lastAccess().get());
+        var expectedEntry = expected.entry();
+        var actualEntry = actual.entry();
+        assertEquals(expectedEntry.getRequestDate(), actualEntry.getRequestDate());
+        assertEquals(expectedEntry.getResponseDate(), actualEntry.getResponseDate());
+        assertEquals(expectedEntry.getStatusLine().toString(), actualEntry.getStatusLine().toString());
+        assertEquals(expectedEntry.getAllHeaders().length, actualEntry.getAllHeaders().length);
+        for (var header : expectedEntry.getAllHeaders()) {
+            assertEquals(header.getValue(), actualEntry.getFirstHeader(header.getName()).getValue());
+        }
+        assertEquals(expectedEntry.getVariantMap(), actualEntry.getVariantMap());
+        var resource = assertInstanceOf(ContentFileResource.class, actualEntry.getResource());
+        assertEquals(expected.path(), resource.getPath());
+    }
+
+    @Test
+    void encodeDecode() {
+        var stored = this.createStoredEntry(1);
+        var record = CacheIndex.encode(key(1), stored);
+        assertEquals(key(1), CacheIndex.decodeKey(record.duplicate()));
+        assertStoredEquals(stored, CacheIndex.decode(record));
+    }
+
+    @Test
+    void writeAndOpen() throws IOException {
+        var expected = new HashMap<String, CacheStorage.StoredEntry>();
+        var records = new LinkedHashMap<String, ByteBuffer>();
+        for (var i = 0; i < 100; ++i) {
+            var stored = this.createStoredEntry(i);
+            expected.put(key(i), stored);
+            records.put(key(i), CacheIndex.encode(key(i), stored));
+        }
+        var written = CacheIndex.empty().write(this.parentPath, this.tempPath, records);
+        assertEquals(100, written.size());
+
+        var index = CacheIndex.open(this.parentPath);
+        assertEquals(100, index.size());
+        for (var entry : expected.entrySet()) {
+            assertTrue(index.contains(entry.getKey()));
+            var stored = index.get(entry.getKey());
+            assertNotNull(stored);
+            assertStoredEquals(entry.getValue(), stored);
+        }
+        assertFalse(index.contains(key(100)));
+        assertNull(index.get(key(100)));
+
+        var summaries = new HashMap<String, Path>();
+        index.forEach((key, path, size, lastAccess) -> {
+            var stored = expected.get(key);
+            assertEquals(stored.size(), size);
+            assertEquals(stored.lastAccess().get(), lastAccess);
+            summaries.put(key, path);
+        });
+        assertEquals(expected.size(), summaries.size());
+        expected.forEach((key, stored) -> assertEquals(stored.path(), summaries.get(key)));
+    }
+
+    @Test
+    void newerGenerationSupersedes() throws IOException {
+        var first = CacheIndex.empty().write(this.parentPath, this.tempPath,
+                Map.of(key(1), CacheIndex.encode(key(1), this.createStoredEntry(1))));
+        assertFalse(first.isSuperseded(this.parentPath));
+        assertTrue(CacheIndex.empty().isSuperseded(this.parentPath));
+
+        var second = first.write(this.parentPath, this.tempPath,
+                Map.of(key(2), CacheIndex.encode(key(2), this.createStoredEntry(2))));
+        assertTrue(first.isSuperseded(this.parentPath));
+        assertFalse(second.isSuperseded(this.parentPath));
+
+        // older generations are deleted once a newer one is opened
+        var index = CacheIndex.open(this.parentPath);
+        assertFalse(index.contains(key(1)));
+        assertTrue(index.contains(key(2)));
+        assertFalse(Files.exists(this.parentPath.resolve("storage-index-1.bin")));
+    }
+
+    @Test
+    void malformedGenerationIsSkipped() throws IOException {
+        CacheIndex.empty().write(this.parentPath, this.tempPath,
+                Map.of(key(1), CacheIndex.encode(key(1), this.createStoredEntry(1))));
+        var malformedPath = this.parentPath.resolve("storage-index-2.bin");
+        Files.write(malformedPath, new byte[16]);
+
+        var index = CacheIndex.open(this.parentPath);
+        assertTrue(index.contains(key(1)));
+        assertFalse(Files.exists(malformedPath));
+    }
+
+    @Test
+    void noValidGenerationIsReported() throws IOException {
+        Files.write(this.parentPath.resolve("storage-index-1.bin"), new byte[16]);
+        assertThrows(IOException.class, () -> CacheIndex.open(this.parentPath));
+        assertEquals(0, CacheIndex.open(this.parentPath).size());
+    }
+
+    @Test
+    void malformedRecordIsMissed() throws IOException {
+        var records = new LinkedHashMap<String, ByteBuffer>();
+        for (var i = 0; i < 2; ++i) {
+            records.put(key(i), CacheIndex.encode(key(i), this.createStoredEntry(i)));
+        }
+        CacheIndex.empty().write(this.parentPath, this.tempPath, records);
+        var path = this.parentPath.resolve("storage-index-1.bin");
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+        // the length of the first record in the table exceeds the file
+        bytes.putInt(Math.toIntExact(bytes.getLong(16 + Long.BYTES)), Integer.MAX_VALUE);
+        Files.write(path, bytes.array());
+
+        // records are only validated when they are looked up
+        var index = CacheIndex.open(this.parentPath);
+        assertEquals(2, index.size());
+        var found = 0;
+        for (var i = 0; i < 2; ++i) {
+            if (index.get(key(i)) != null) {
+                found += 1;
+            }
+        }
+        assertEquals(1, found);
+        var summaries = new HashMap<String, Path>();
+        index.forEach((key, summaryPath, size, lastAccess) -> summaries.put(key, summaryPath));
+        assertEquals(1, summaries.size());
+    }
+}
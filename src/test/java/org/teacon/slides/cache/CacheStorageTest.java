@@ -0,0 +1,303 @@
+package org.teacon.slides.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheStorageTest {
+
+    private static final String URL = "https://example.com/slide.png";
+    private static final String OTHER_URL = "https://example.com/other.png";
+    private static final String THIRD_URL = "https://example.com/third.png";
+    private static final String MISSING_URL = "https://example.com/missing.png";
+    // enough records to compact the journal into the next generation of the index
+    private static final int COMPACT_RECORDS = 1024;
+
+    @TempDir
+    Path parentPath;
+
+    @TempDir
+    Path otherPath;
+
+    private CacheStorage open() throws IOException {
+        return new CacheStorage(this.parentPath, Long.MAX_VALUE, Integer.MAX_VALUE, Runnable::run);
+    }
+
+    private static HttpCacheEntry createEntry(Resource resource, long responseMillis, String eTag) {
+        var headers = new Header[]{
+                new BasicHeader(HttpHeaders.CONTENT_TYPE, "image/png"),
+                new BasicHeader(HttpHeaders.ETAG, eTag)};
+        var statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        // dates are stored in seconds
+        var date = new Date(responseMillis / 1000L * 1000L);
+        return new HttpCacheEntry(date, date, statusLine, headers, resource, Map.of());
+    }
+
+    private static Resource receive(CacheStorage storage, String body) throws IOException {
+        var input = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        return storage.createResourceFactory().generate(URL, input, null);
+    }
+
+    private static Path getBodyPath(CacheStorage storage, String url) {
+        var entry = storage.getEntry(url);
+        assertNotNull(entry);
+        return assertInstanceOf(ContentFileResource.class, entry.getResource()).getPath();
+    }
+
+    private static void rewrite(CacheStorage storage, String url, int times) throws IOException {
+        for (var i = 0; i < times; ++i) {
+            var cached = storage.getEntry(url);
+            assertNotNull(cached);
+            storage.putEntry(url, createEntry(cached.getResource(), 1_000_000L, "\"v" + i + "\""));
+        }
+    }
+
+    private static long countFiles(Path path) throws IOException {
+        try (var stream = Files.list(path)) {
+            return stream.count();
+        }
+    }
+
+    @Test
+    void changesAreJournaled() throws IOException {
+        var storage = this.open();
+        assertNull(storage.getEntry(URL));
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "other"), 1_000_000L, "\"v1\""));
+        storage.removeEntry(OTHER_URL);
+
+        for (var reopened : List.of(storage, this.open())) {
+            var entry = reopened.getEntry(URL);
+            assertNotNull(entry);
+            assertEquals("\"v1\"", entry.getFirstHeader(HttpHeaders.ETAG).getValue());
+            try (var input = entry.getResource().getInputStream()) {
+                assertEquals("body", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            assertNull(reopened.getEntry(OTHER_URL));
+        }
+    }
+
+    @Test
+    void journalIsCompactedIntoIndex() throws IOException {
+        var storage = this.open();
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "other"), 1_000_000L, "\"v1\""));
+        storage.removeEntry(OTHER_URL);
+        rewrite(storage, URL, COMPACT_RECORDS);
+
+        assertTrue(Files.exists(this.parentPath.resolve("storage-index-1.bin")));
+        var journalPath = this.parentPath.resolve("storage-keys.journal");
+        assertTrue(Files.readAllLines(journalPath).size() < COMPACT_RECORDS);
+        var reopened = this.open();
+        var entry = reopened.getEntry(URL);
+        assertNotNull(entry);
+        assertEquals("\"v" + (COMPACT_RECORDS - 1) + "\"", entry.getFirstHeader(HttpHeaders.ETAG).getValue());
+        assertNull(reopened.getEntry(OTHER_URL));
+    }
+
+    @Test
+    void revalidationDoesNotRewriteBody() throws IOException {
+        var storage = this.open();
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        var bodyPath = getBodyPath(storage, URL);
+        Files.setLastModifiedTime(bodyPath, FileTime.fromMillis(1_000_000L));
+        var fileKey = Files.readAttributes(bodyPath, BasicFileAttributes.class).fileKey();
+        assertEquals(0, countFiles(storage.getTempPath()));
+
+        // the caching layer copies the resource of the cached entry, and stores the updated entry again
+        var cached = storage.getEntry(URL);
+        assertNotNull(cached);
+        var copied = storage.createResourceFactory().copy(URL, cached.getResource());
+        storage.putEntry(URL, createEntry(copied, 2_000_000L, "\"v2\""));
+
+        assertEquals(bodyPath, getBodyPath(storage, URL));
+        var attributes = Files.readAttributes(bodyPath, BasicFileAttributes.class);
+        assertEquals(fileKey, attributes.fileKey());
+        assertEquals(FileTime.fromMillis(1_000_000L), attributes.lastModifiedTime());
+        assertEquals(0, countFiles(storage.getTempPath()));
+
+        var updated = storage.getEntry(URL);
+        assertNotNull(updated);
+        assertEquals("\"v2\"", updated.getFirstHeader(HttpHeaders.ETAG).getValue());
+        assertEquals(2_000_000L, updated.getResponseDate().getTime());
+
+        // the new headers have been journaled
+        var reopened = this.open().getEntry(URL);
+        assertNotNull(reopened);
+        assertEquals("\"v2\"", reopened.getFirstHeader(HttpHeaders.ETAG).getValue());
+    }
+
+    @Test
+    void tornJournalTailIsTruncated() throws IOException {
+        var storage = this.open();
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        var journalPath = this.parentPath.resolve("storage-keys.journal");
+        var journalSize = Files.size(journalPath);
+        // a crash while appending the next record
+        Files.writeString(journalPath, "{\"op\":\"put\",\"key\":", StandardOpenOption.APPEND);
+
+        var reopened = this.open();
+        assertNotNull(reopened.getEntry(URL));
+        assertEquals(journalSize, Files.size(journalPath));
+
+        // records appended after the truncation are replayed as usual
+        reopened.putEntry(OTHER_URL, createEntry(receive(reopened, "other"), 1_000_000L, "\"v1\""));
+        var replayed = this.open();
+        assertNotNull(replayed.getEntry(URL));
+        assertNotNull(replayed.getEntry(OTHER_URL));
+    }
+
+    @Test
+    void unreadableIndexIsRecoveredFromSidecars() throws IOException {
+        var storage = this.open();
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "other"), 1_000_000L, "\"v1\""));
+        var otherBodyPath = getBodyPath(storage, OTHER_URL);
+        Files.delete(this.parentPath.resolve("storage-keys.journal"));
+        Files.write(this.parentPath.resolve("storage-index-1.bin"), new byte[16]);
+        // the name of the body no longer matches its content
+        Files.writeString(otherBodyPath, "corrupted");
+
+        var recovered = this.open();
+        var entry = recovered.getEntry(URL);
+        assertNotNull(entry);
+        assertEquals("\"v1\"", entry.getFirstHeader(HttpHeaders.ETAG).getValue());
+        assertNull(recovered.getEntry(OTHER_URL));
+        assertFalse(Files.exists(otherBodyPath));
+
+        // recovered entries have been written into a new index
+        var reopened = this.open();
+        assertNotNull(reopened.getEntry(URL));
+        assertNull(reopened.getEntry(OTHER_URL));
+    }
+
+    @Test
+    void removalInAnotherInstanceIsNeverResurrected() throws Exception {
+        var writer = this.open();
+        writer.putEntry(URL, createEntry(receive(writer, "body"), 1_000_000L, "\"v1\""));
+        writer.putEntry(OTHER_URL, createEntry(receive(writer, "other"), 1_000_000L, "\"v1\""));
+        rewrite(writer, OTHER_URL, COMPACT_RECORDS);
+        assertTrue(Files.exists(this.parentPath.resolve("storage-index-1.bin")));
+
+        var reader = this.open();
+        assertNotNull(reader.getEntry(URL));
+        var stopped = new AtomicBoolean();
+        var threads = Executors.newFixedThreadPool(2);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (var i = 0; i < 2; ++i) {
+                futures.add(threads.submit(() -> {
+                    while (!stopped.get()) {
+                        reader.getEntry(URL);
+                        assertNotNull(reader.getEntry(OTHER_URL));
+                        // misses catch up with the writer in the background (which is the same thread here)
+                        reader.getEntry(MISSING_URL);
+                    }
+                    return null;
+                }));
+            }
+            writer.removeEntry(URL);
+            rewrite(writer, OTHER_URL, COMPACT_RECORDS);
+            assertTrue(Files.exists(this.parentPath.resolve("storage-index-2.bin")));
+            stopped.set(true);
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            stopped.set(true);
+            threads.shutdown();
+        }
+
+        // removing an absent entry takes the storage lock, which always catches up with the writer
+        reader.removeEntry(MISSING_URL);
+        assertNull(reader.getEntry(URL));
+        assertNotNull(reader.getEntry(OTHER_URL));
+        assertNull(this.open().getEntry(URL));
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        var storage = new CacheStorage(this.parentPath, Long.MAX_VALUE, 2, Runnable::run);
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "other"), 1_000_000L, "\"v1\""));
+        var otherBodyPath = getBodyPath(storage, OTHER_URL);
+        // the first entry is used after the other one, so that the other one is the least recently used
+        Thread.sleep(10L);
+        assertNotNull(storage.getEntry(URL));
+        Thread.sleep(10L);
+        storage.putEntry(THIRD_URL, createEntry(receive(storage, "third"), 1_000_000L, "\"v1\""));
+
+        assertNotNull(storage.getEntry(URL));
+        assertNull(storage.getEntry(OTHER_URL));
+        assertNotNull(storage.getEntry(THIRD_URL));
+        assertFalse(Files.exists(otherBodyPath));
+
+        // the eviction has been journaled
+        var reopened = this.open();
+        assertNotNull(reopened.getEntry(URL));
+        assertNull(reopened.getEntry(OTHER_URL));
+    }
+
+    @Test
+    void byteQuotaIsEnforced() throws IOException {
+        // two bodies of four bytes fit, while three of them do not
+        var storage = new CacheStorage(this.parentPath, 8L, Integer.MAX_VALUE, Runnable::run);
+        storage.putEntry(URL, createEntry(receive(storage, "aaaa"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "bbbb"), 1_000_000L, "\"v1\""));
+        assertNotNull(storage.getEntry(URL));
+        assertNotNull(storage.getEntry(OTHER_URL));
+        storage.putEntry(THIRD_URL, createEntry(receive(storage, "cccc"), 1_000_000L, "\"v1\""));
+
+        var remaining = Stream.of(URL, OTHER_URL, THIRD_URL).filter(url -> storage.getEntry(url) != null).count();
+        assertEquals(2L, remaining);
+    }
+
+    @Test
+    void bundleIsExportedAndImported() throws IOException {
+        var storage = this.open();
+        storage.putEntry(URL, createEntry(receive(storage, "body"), 1_000_000L, "\"v1\""));
+        storage.putEntry(OTHER_URL, createEntry(receive(storage, "other"), 1_000_000L, "\"v1\""));
+        // an entry whose body has been deleted after the snapshot is skipped
+        storage.putEntry(THIRD_URL, createEntry(receive(storage, "third"), 1_000_000L, "\"v1\""));
+        Files.delete(getBodyPath(storage, THIRD_URL));
+        var bundlePath = this.otherPath.resolve("slides.bundle");
+        assertEquals(2, storage.exportBundle(bundlePath));
+
+        var imported = new CacheStorage(Files.createDirectories(this.otherPath.resolve("cache")),
+                Long.MAX_VALUE, Integer.MAX_VALUE, Runnable::run);
+        assertEquals(2, imported.importBundle(bundlePath));
+        var entry = imported.getEntry(URL);
+        assertNotNull(entry);
+        try (var input = entry.getResource().getInputStream()) {
+            assertEquals("body", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertNotNull(imported.getEntry(OTHER_URL));
+        assertNull(imported.getEntry(THIRD_URL));
+    }
+}
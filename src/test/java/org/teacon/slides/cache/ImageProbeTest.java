@@ -0,0 +1,117 @@
+package org.teacon.slides.cache;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageProbeTest {
+
+    private static final int MAX_DIMENSION = 4096;
+
+    private static final class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private Response(byte[] body) {
+            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            this.setEntity(new ByteArrayEntity(body));
+        }
+
+        @Override
+        public void close() {
+            // the body is in memory
+        }
+    }
+
+    /**
+     * @return the count of bytes read from the probed body
+     */
+    private static long receive(byte[] body) throws Exception {
+        var probe = new ImageProbe(MAX_DIMENSION, Long.MAX_VALUE);
+        var exec = probe.decorate((route, request, context, execAware) -> new Response(body));
+        var request = HttpRequestWrapper.wrap(new HttpGet("https://example.com/slide"));
+        var route = new HttpRoute(new HttpHost("example.com", 443, "https"));
+        try (var response = exec.execute(route, request, HttpClientContext.create(), null);
+             var stream = response.getEntity().getContent()) {
+            var received = 0L;
+            var buffer = new byte[1 << 13];
+            for (var n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                received += n;
+            }
+            return received;
+        }
+    }
+
+    private static byte[] png(int width, int height) {
+        var bytes = ByteBuffer.allocate(64);
+        bytes.put("\u0089PNG\r\n\u001A\n".getBytes(StandardCharsets.ISO_8859_1));
+        bytes.putInt(13).putInt(0x49484452).putInt(width).putInt(height);
+        return bytes.array();
+    }
+
+    private static byte[] bmp(int width, int height) {
+        var bytes = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put((byte) 'B').put((byte) 'M').position(14);
+        bytes.putInt(40).putInt(width).putInt(height);
+        return bytes.array();
+    }
+
+    private static byte[] jpeg(int metadataSegments, int width, int height) {
+        var output = new ByteArrayOutputStream();
+        output.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        for (var i = 0; i < metadataSegments; ++i) {
+            // an APP1 segment of the max length, which is common for EXIF thumbnails and ICC profiles
+            output.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) 0xFF, (byte) 0xFF});
+            output.writeBytes(new byte[0xFFFF - 2]);
+        }
+        // SOF0: length, precision, height, width, and then the components
+        output.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xC0, 0x00, 0x11, 0x08,
+                (byte) (height >>> 8), (byte) height, (byte) (width >>> 8), (byte) width});
+        output.writeBytes(new byte[15]);
+        return output.toByteArray();
+    }
+
+    @Test
+    void acceptedImagesAreReceivedCompletely() throws Exception {
+        var body = png(1920, 1080);
+        assertEquals(body.length, receive(body));
+        body = jpeg(0, 1920, 1080);
+        assertEquals(body.length, receive(body));
+    }
+
+    @Test
+    void oversizedPngIsRejected() {
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(png(MAX_DIMENSION + 1, 1)));
+    }
+
+    @Test
+    void pngDimensionsAreUnsigned() {
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(png(Integer.MIN_VALUE, 1)));
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(png(0, 1)));
+    }
+
+    @Test
+    void bmpDimensionsNeverOverflow() {
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(bmp(Integer.MIN_VALUE, 1)));
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(bmp(1, Integer.MIN_VALUE)));
+    }
+
+    @Test
+    void jpegFrameAfterLargeMetadataIsProbed() throws Exception {
+        var body = jpeg(4, 1920, 1080);
+        assertEquals(body.length, receive(body));
+        assertThrows(ImageProbe.RejectedException.class, () -> receive(jpeg(4, MAX_DIMENSION + 1, 1080)));
+    }
+}
@@ -0,0 +1,122 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PixelCacheTest {
+
+    private static final HashCode CONTENT_HASH = HashCode.fromString("0123456789abcdef0123456789abcdef01234567");
+    private static final int[] SWIZZLE = {0x1903, 0x1904, 0x1905, 0x1906};
+
+    @TempDir
+    Path parentPath;
+
+    private final AtomicInteger savedCount = new AtomicInteger();
+    private PixelCache pixelCache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        var tempPath = Files.createDirectories(this.parentPath.resolve("tmp"));
+        this.pixelCache = new PixelCache(this.parentPath, tempPath, this.savedCount::incrementAndGet);
+    }
+
+    private static PixelCache.Pixels createPixels(int width, int height) {
+        var buffer = ByteBuffer.allocateDirect(4 * width * height);
+        for (var i = 0; buffer.hasRemaining(); ++i) {
+            buffer.put((byte) i);
+        }
+        return new PixelCache.Pixels(width, height, buffer.flip(), SWIZZLE.clone());
+    }
+
+    private Path resolve(HashCode contentHash) {
+        return PixelCache.resolveDirectory(this.parentPath).resolve(contentHash + ".rgba");
+    }
+
+    @Test
+    void roundTrip() {
+        var saved = createPixels(3, 2);
+        this.pixelCache.save(CONTENT_HASH, saved);
+        assertTrue(this.pixelCache.contains(CONTENT_HASH));
+        assertEquals(1, this.savedCount.get());
+
+        var loaded = this.pixelCache.load(CONTENT_HASH).orElseThrow();
+        assertEquals(3, loaded.width());
+        assertEquals(2, loaded.height());
+        assertArrayEquals(SWIZZLE, loaded.swizzle());
+        assertEquals(saved.buffer(), loaded.buffer());
+        assertEquals(1, this.pixelCache.getHitCount());
+        assertEquals(0, this.pixelCache.getMissCount());
+    }
+
+    @Test
+    void header() throws IOException {
+        this.pixelCache.save(CONTENT_HASH, createPixels(3, 2));
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(this.resolve(CONTENT_HASH)));
+        assertEquals(32 + 4 * 3 * 2, bytes.remaining());
+        assertEquals(0x53535058, bytes.getInt(0));
+        assertEquals(1, bytes.getInt(4));
+        assertEquals(3, bytes.getInt(8));
+        assertEquals(2, bytes.getInt(12));
+        for (var i = 0; i < SWIZZLE.length; ++i) {
+            assertEquals(SWIZZLE[i], bytes.getInt(16 + 4 * i));
+        }
+        assertEquals(32 + 4 * 3 * 2, this.pixelCache.size(CONTENT_HASH));
+    }
+
+    @Test
+    void missing() {
+        assertFalse(this.pixelCache.contains(CONTENT_HASH));
+        assertTrue(this.pixelCache.load(CONTENT_HASH).isEmpty());
+        assertEquals(1, this.pixelCache.getMissCount());
+        assertEquals(0, this.pixelCache.size(CONTENT_HASH));
+    }
+
+    @Test
+    void corruptFileIsDiscarded() throws IOException {
+        this.pixelCache.save(CONTENT_HASH, createPixels(3, 2));
+        var path = this.resolve(CONTENT_HASH);
+        // the size no longer matches the dimensions in the header
+        var bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+
+        assertTrue(this.pixelCache.load(CONTENT_HASH).isEmpty());
+        assertFalse(Files.exists(path));
+        assertEquals(0, this.pixelCache.size(CONTENT_HASH));
+        assertEquals(1, this.pixelCache.getMissCount());
+    }
+
+    @Test
+    void unrecognizedHeaderIsDiscarded() throws IOException {
+        var path = this.resolve(CONTENT_HASH);
+        Files.write(path, new byte[32 + 4]);
+
+        assertTrue(this.pixelCache.load(CONTENT_HASH).isEmpty());
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    void scanAndDelete() throws IOException {
+        this.pixelCache.save(CONTENT_HASH, createPixels(3, 2));
+        var tempPath = this.parentPath.resolve("tmp");
+        var reopened = new PixelCache(this.parentPath, tempPath, () -> {
+        });
+        assertEquals(0, reopened.size(CONTENT_HASH));
+        reopened.scan();
+        assertEquals(32 + 4 * 3 * 2, reopened.size(CONTENT_HASH));
+
+        assertEquals(32 + 4 * 3 * 2, reopened.delete(CONTENT_HASH));
+        assertFalse(reopened.contains(CONTENT_HASH));
+        assertEquals(0, reopened.size(CONTENT_HASH));
+    }
+}